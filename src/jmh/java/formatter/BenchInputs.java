@@ -0,0 +1,95 @@
+// Current filename: BenchInputs.java
+
+package formatter;
+
+import java.util.Random;
+
+/**
+ * Deterministic benchmark inputs (fixed seeds, so every run and every baseline sees the same
+ * bytes): Java sources, prose with heavy inline code, and deeply nested HTML.
+ */
+final class BenchInputs {
+
+    private BenchInputs() {}
+
+    private static final String[] JAVA_LINES = {
+            "    /** Returns the running total, or -1 when the \"window\" is empty. */",
+            "    public static long total(List<Integer> values, int window) {",
+            "        if (values == null || values.isEmpty()) return -1L;",
+            "        long sum = 0; // accumulate in a long: ints overflow past 2^31",
+            "        for (int i = 0; i < Math.min(window, values.size()); i++) {",
+            "            sum += values.get(i) * 0x1F + 3.5e2;",
+            "        }",
+            "        char sep = '\\t';",
+            "        String label = String.format(\"%s%c%d <%s>\", name, sep, sum, \"a & b\");",
+            "        @SuppressWarnings(\"unchecked\") Map<String, Object> m = new HashMap<>();",
+            "        /* block comment spanning",
+            "           two lines with <html> & \"quotes\" */",
+            "        return sum;",
+            "    }",
+            "",
+    };
+
+    private static final String[] WORDS = {
+            "the", "method", "returns", "a", "value", "when", "loop", "each", "element", "of",
+            "array", "is", "compared", "with", "index", "so", "that", "output", "matches", "expected",
+    };
+
+    private static final String[] INLINE_CODE = {
+            "`for (int i = 0; i < n; i++)`", "`List<String>`", "`a && b`", "`x < y`",
+            "`System.out.println(\"hi\")`", "`Map<K, V>`", "`i++`", "`null`",
+    };
+
+    /** A compilable-looking Java class of roughly bytes characters. */
+    static String javaSource(int bytes) {
+        StringBuilder sb = new StringBuilder(bytes + 256);
+        sb.append("package bench;\n\nimport java.util.*;\n\npublic final class Generated {\n\n");
+        int line = 0;
+        while (sb.length() < bytes) {
+            sb.append(JAVA_LINES[line++ % JAVA_LINES.length]).append('\n');
+        }
+        return sb.append("}\n").toString();
+    }
+
+    /** Paragraphs where roughly every fourth token is a backtick code span. */
+    static String proseWithInlineCode(int bytes) {
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder(bytes + 256);
+        int inParagraph = 0;
+        while (sb.length() < bytes) {
+            if (rnd.nextInt(4) == 0) {
+                sb.append(INLINE_CODE[rnd.nextInt(INLINE_CODE.length)]);
+            } else {
+                sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+            }
+            if (++inParagraph == 80) {
+                sb.append(".\n\n");
+                inParagraph = 0;
+            } else {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A document of repeated blocks, each nesting div/section/ul/li depth levels deep with
+     * inline markup and a <pre> block at the bottom, until roughly bytes characters.
+     */
+    static String nestedHtml(int depth, int bytes) {
+        String[] tags = {"div", "section", "ul", "li"};
+        StringBuilder sb = new StringBuilder(bytes + 1024);
+        sb.append("<!DOCTYPE html><html><head><title>bench</title></head><body><main>");
+        while (sb.length() < bytes) {
+            for (int d = 0; d < depth; d++) {
+                sb.append('<').append(tags[d % tags.length]).append(" class=\"l").append(d).append("\">");
+                if (d % 3 == 0) sb.append("<p>Level ").append(d).append(" with <code>x &lt; y</code> and <b>bold</b></p>");
+            }
+            sb.append("<pre>int x = 1;\n  if (x &lt; 2) { return; }\n</pre>");
+            for (int d = depth - 1; d >= 0; d--) {
+                sb.append("</").append(tags[d % tags.length]).append('>');
+            }
+        }
+        return sb.append("</main></body></html>").toString();
+    }
+}
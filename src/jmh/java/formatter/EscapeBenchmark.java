@@ -0,0 +1,48 @@
+// Current filename: EscapeBenchmark.java
+
+package formatter;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HtmlEscaper on program-output sized text: "plain" has nothing to escape (escape returns its
+ * input), "code" is Java source with the usual density of <, &, and quotes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EscapeBenchmark {
+
+    @Param({"plain", "code"})
+    public String kind;
+
+    @Param({"1024", "1048576"})
+    public int textBytes;
+
+    private String text;
+    private StringBuilder reused;
+
+    @Setup
+    public void setup() {
+        String code = BenchInputs.javaSource(textBytes);
+        text = kind.equals("plain") ? code.replaceAll("[<>&\"']", "_") : code;
+        reused = new StringBuilder(text.length() * 2);
+    }
+
+    @Benchmark
+    public String escape() {
+        return HtmlEscaper.escape(text);
+    }
+
+    @Benchmark
+    public int appendEscaped() {
+        reused.setLength(0);
+        HtmlEscaper.appendEscaped(reused, text);
+        return reused.length();
+    }
+}
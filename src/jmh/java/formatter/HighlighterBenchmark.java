@@ -0,0 +1,44 @@
+// Current filename: HighlighterBenchmark.java
+
+package formatter;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Syntax highlighting of whole Java sources, 1 KB to 10 MB. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HighlighterBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    public int sourceBytes;
+
+    private String source;
+    private StringBuilder reused;
+
+    @Setup
+    public void setup() {
+        source = BenchInputs.javaSource(sourceBytes);
+        reused = new StringBuilder(source.length() * 3);
+    }
+
+    /** String result, as the code listing section uses it. */
+    @Benchmark
+    public String highlight() {
+        return Highlighter.highlight(source, "default", null);
+    }
+
+    /** Streaming form into a reused buffer: tokenizer and escaping cost without result copies. */
+    @Benchmark
+    public int highlightInto() throws IOException {
+        reused.setLength(0);
+        Highlighter.highlight(source, "default", null, reused);
+        return reused.length();
+    }
+}
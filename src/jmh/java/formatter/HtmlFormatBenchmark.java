@@ -0,0 +1,57 @@
+// Current filename: HtmlFormatBenchmark.java
+
+package formatter;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The tidy_html formatters over deeply nested documents: the builtin tidy (parse + serialize)
+ * and the single-pass pre-aware pretty printer used as the fallback.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlFormatBenchmark {
+
+    @Param({"8", "64", "512"})
+    public int depth;
+
+    @Param({"65536", "1048576"})
+    public int htmlBytes;
+
+    private String html;
+
+    @Setup
+    public void setup() {
+        html = BenchInputs.nestedHtml(depth, htmlBytes);
+    }
+
+    /** Serialization into a String, as maybeBeautify does. */
+    @Benchmark
+    public String builtinTidy() throws IOException {
+        StringWriter out = new StringWriter(html.length() + html.length() / 3 + 256);
+        HtmlTidy.parse(html).writeTo(out);
+        return out.toString();
+    }
+
+    /** Serialization streamed to a discarding writer, as when writing the output file. */
+    @Benchmark
+    public HtmlTidy.Document builtinTidyStreamed() throws IOException {
+        HtmlTidy.Document doc = HtmlTidy.parse(html);
+        doc.writeTo(Writer.nullWriter());
+        return doc;
+    }
+
+    @Benchmark
+    public void prettyPrint() throws IOException {
+        HtmlBeautifier.prettyPrint(html, Writer.nullWriter());
+    }
+}
@@ -0,0 +1,32 @@
+// Current filename: InlineCodeBenchmark.java
+
+package formatter;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Prose sections with heavy backtick code: paragraphs, code spans and escaping. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InlineCodeBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int proseBytes;
+
+    private String prose;
+
+    @Setup
+    public void setup() {
+        prose = BenchInputs.proseWithInlineCode(proseBytes);
+    }
+
+    @Benchmark
+    public String process() {
+        return InlineCodeProcessor.process(prose);
+    }
+}
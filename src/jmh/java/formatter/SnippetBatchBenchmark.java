@@ -0,0 +1,59 @@
+// Current filename: SnippetBatchBenchmark.java
+
+package formatter;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many forum-reply sized snippets with one JSON theme (themes/monokai.json, so run from the
+ * project root): Highlighter.highlightAll (theme and style table resolved once, parallel above
+ * its size threshold) versus highlight(snippet, theme) per snippet, which is what callers did
+ * before, including the ThemeLoader.load lookup on every call. Scores are per snippet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnippetBatchBenchmark {
+
+    private static final int SNIPPETS = 512;
+    private static final String THEME = "monokai";
+
+    @Param({"256", "2048"})
+    public int snippetBytes;
+
+    private List<String> snippets;
+
+    @Setup
+    public void setup() {
+        if (ThemeLoader.load(THEME) == null) {
+            throw new IllegalStateException("themes/" + THEME + ".json not found; run the benchmarks from the project root");
+        }
+        String pool = BenchInputs.javaSource(SNIPPETS * snippetBytes);
+        snippets = new ArrayList<>(SNIPPETS);
+        for (int i = 0; i < SNIPPETS; i++) {
+            snippets.add(pool.substring(i * snippetBytes, (i + 1) * snippetBytes));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SNIPPETS)
+    public List<String> highlightAll() {
+        return Highlighter.highlightAll(snippets, THEME);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SNIPPETS)
+    public void oneByOne(Blackhole bh) {
+        for (String s : snippets) {
+            bh.consume(Highlighter.highlight(s, THEME));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+// Current filename: BatchRunner.java
+
+package formatter;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-interactive batch mode: regenerate the post for many units in one JVM.
+ *
+ * Usage:
+ *   java formatter.DiscussionPostFormatter --batch --units 1-8[,10,12] [--jobs N] [--config path] [--force]
+ *
+ * Each unit gets its own detached Config copy (unit overridden, so <UNIT_NUMBER> resolves
+ * per unit; config.txt is never rewritten). Units run on a fixed worker pool and a summary
+ * table with per-unit timings and failures is printed at the end.
+ *
+ * With incremental_build = true, units whose build manifest still matches their inputs are
+ * reported as up to date and not regenerated; --force regenerates them anyway.
+ *
+ * Exit status: 0 when every unit succeeded, 1 otherwise (2 for usage errors).
+ */
+public final class BatchRunner {
+
+    private BatchRunner() {}
+
+    static final String USAGE = "Usage: --batch --units <range|list> [--jobs N] [--config path] [--force]";
+
+    /** Upper bound on the units one --units spec may select. */
+    static final int MAX_UNITS = 1000;
+
+    /** One post to render: base config, optionally with the unit overridden (unit == null keeps it). */
+    record Job(String label, Config base, String unit) {}
+
+    record UnitOutcome(String label, boolean ok, long millis, String detail) {}
+
+    public static int run(String[] args) throws Exception {
+        String configPath = "config.txt";
+        String unitSpec = null;
+        int jobs = 0;
+        boolean force = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--batch" -> { }
+                case "--units" -> unitSpec = (i + 1 < args.length) ? args[++i] : null;
+                case "--jobs" -> jobs = (i + 1 < args.length && args[i + 1].matches("\\d+")) ? Utils.positiveInt(args[++i], 0) : 0;
+                case "--config" -> configPath = (i + 1 < args.length) ? args[++i] : configPath;
+                case "--force" -> force = true;
+                default -> {
+                    System.out.println("Unknown batch argument: " + args[i]);
+                    return 2;
+                }
+            }
+        }
+        if (unitSpec == null || unitSpec.isBlank()) {
+            System.out.println(USAGE);
+            return 2;
+        }
+
+        List<String> units;
+        try {
+            units = parseUnits(unitSpec);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return 2;
+        }
+        if (units.isEmpty()) {
+            System.out.println("No units selected.");
+            return 2;
+        }
+
+        Config base = Config.load(configPath);
+        if (jobs <= 0) {
+            jobs = Math.min(units.size(), Runtime.getRuntime().availableProcessors());
+        }
+
+        System.out.println("Batch: " + units.size() + " unit(s) from " + base.getConfigDir()
+                + " using " + jobs + " worker(s)");
+        long start = System.nanoTime();
+        List<Job> work = new ArrayList<>();
+        for (String unit : units) {
+            work.add(new Job(unit, base, unit));
+        }
+        List<UnitOutcome> outcomes = runAll(work, jobs, force);
+        long totalMs = (System.nanoTime() - start) / 1_000_000;
+
+        printSummary(outcomes, totalMs, jobs);
+        CompilationCache compileCache = CompilationCache.forConfig(base);
+        if (compileCache != null) {
+            System.out.println(compileCache.stats());
+        }
+        SectionCache sectionCache = SectionCache.forConfig(base);
+        if (sectionCache != null) {
+            System.out.println(sectionCache.stats());
+        }
+        return outcomes.stream().allMatch(UnitOutcome::ok) ? 0 : 1;
+    }
+
+    /** Renders every job on a bounded pool; results come back in input order. */
+    static List<UnitOutcome> runAll(List<Job> work, int jobs, boolean force) throws InterruptedException {
+        ExecutorService pool = newPool(jobs, "batch-worker");
+        try {
+            List<Future<UnitOutcome>> futures = new ArrayList<>();
+            for (Job job : work) {
+                futures.add(pool.submit(() -> renderUnit(job, force)));
+            }
+            List<UnitOutcome> outcomes = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    outcomes.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    outcomes.add(new UnitOutcome(work.get(i).label(), false, 0, String.valueOf(e.getCause())));
+                }
+            }
+            return outcomes;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Daemon workers named name-1, name-2, ... */
+    static ExecutorService newPool(int threads, String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Renders and writes one post; with incremental_build, an up-to-date unit is not regenerated. */
+    static UnitOutcome renderUnit(Job job, boolean force) {
+        long start = System.nanoTime();
+        try {
+            Config cfg = (job.unit() == null) ? job.base() : job.base().withValue("unit", job.unit());
+            Path out = cfg.getResolvedPath("output_file_address");
+            if (out == null) {
+                throw new IllegalStateException("output_file_address is not set");
+            }
+            Path codePath = CodeLocator.locate(cfg);
+            BuildManifest manifest = BuildManifest.enabled(cfg) ? BuildManifest.compute(cfg, codePath) : null;
+            if (manifest != null && !force && manifest.upToDate(out)) {
+                return new UnitOutcome(job.label(), true, elapsedMs(start), "up to date: " + out);
+            }
+            boolean replaced = Utils.writeFile(out,
+                    w -> DiscussionPostFormatter.renderPost(cfg, codePath, w), Utils.fsyncOutput(cfg));
+            if (manifest != null) {
+                manifest.record(out);
+            }
+            return new UnitOutcome(job.label(), true, elapsedMs(start), replaced ? out.toString() : "unchanged: " + out);
+        } catch (Exception e) {
+            String msg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            return new UnitOutcome(job.label(), false, elapsedMs(start), msg);
+        }
+    }
+
+    /**
+     * Accepts "3", "1-8", "1,3,5", "1-4,7,9-10". Order is preserved; duplicates are dropped.
+     * Unit numbers beyond int range and selections of more than MAX_UNITS units are rejected
+     * with an IllegalArgumentException.
+     */
+    static List<String> parseUnits(String spec) {
+        LinkedHashSet<String> out = new LinkedHashSet<>();
+        for (String part : spec.split(",")) {
+            String p = part.trim();
+            if (p.isEmpty()) continue;
+            if (p.matches("\\d+")) {
+                out.add(String.valueOf(unitNumber(p)));
+            } else if (p.matches("\\d+\\s*-\\s*\\d+")) {
+                String[] ends = p.split("-");
+                int from = unitNumber(ends[0].trim());
+                int to = unitNumber(ends[1].trim());
+                if (to < from) throw new IllegalArgumentException("Invalid unit range: " + p);
+                if ((long) to - from + 1 > MAX_UNITS) {
+                    throw new IllegalArgumentException("Unit range too large (at most " + MAX_UNITS + " units): " + p);
+                }
+                for (long u = from; u <= to; u++) out.add(String.valueOf(u));
+            } else {
+                throw new IllegalArgumentException("Invalid unit spec (digits, ranges, commas): " + p);
+            }
+            if (out.size() > MAX_UNITS) {
+                throw new IllegalArgumentException("Too many units (at most " + MAX_UNITS + "): " + spec);
+            }
+        }
+        return new ArrayList<>(out);
+    }
+
+    private static int unitNumber(String digits) {
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unit number out of range: " + digits);
+        }
+    }
+
+    static void printSummary(List<UnitOutcome> outcomes, long totalMs, int jobs) {
+        System.out.println();
+        int width = 6;
+        for (UnitOutcome o : outcomes) width = Math.max(width, o.label().length());
+        String row = "%-" + width + "s %-7s %9s  %s%n";
+        System.out.printf(row, "Unit", "Status", "Time(ms)", "Output / Error");
+        System.out.printf(row, "----", "------", "--------", "--------------");
+        int failed = 0;
+        for (UnitOutcome o : outcomes) {
+            if (!o.ok()) failed++;
+            System.out.printf(row, o.label(), o.ok() ? "OK" : "FAILED", o.millis(), o.detail());
+        }
+        System.out.println();
+        System.out.println("Total: " + outcomes.size() + " unit(s), " + (outcomes.size() - failed) + " ok, "
+                + failed + " failed in " + totalMs + " ms (" + jobs + " worker(s))");
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -0,0 +1,169 @@
+// Current filename: BuildManifest.java
+
+package formatter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Incremental regeneration: a manifest stored next to the output file
+ * (unit_1_discussion_post.html -> unit_1_discussion_post.html.manifest) records what the
+ * output was generated from:
+ *
+ *   generator          generator + Java runtime version
+ *   config.<key>       every config value that can change the post (placeholders resolved);
+ *                      the operational keys in NOT_RENDERED are left out
+ *   file.<key>         SHA-256 of each *_file_address input ("missing", or "disabled" when
+ *                      its section is switched off)
+ *   theme              SHA-256 of the theme JSON ("builtin" for the built-in palette)
+ *   code               code file path + SHA-256
+ *   source.<name>      SHA-256 of the other .java files next to the code file
+ *   output             SHA-256 of the written output
+ *
+ * When incremental_build = true and every entry still matches (including the output file,
+ * so a hand-edited or deleted post is regenerated), the unit is skipped. --force always
+ * regenerates. Program output is assumed to depend only on these inputs, as with
+ * cache_program_output.
+ */
+public final class BuildManifest {
+
+    static final String SUFFIX = ".manifest";
+    private static final String GENERATOR = "discussion-post-formatter manifest 1; java " + Runtime.version();
+    private static final String OUTPUT_KEY = "output";
+
+    /**
+     * Keys that only steer how the post is produced (caches, logging, search, durability,
+     * concurrency), never what it contains. Changing them must not trigger a rebuild. Unknown
+     * keys are hashed, so a new key invalidates manifests until it is listed here.
+     */
+    private static final Set<String> NOT_RENDERED = Set.of(
+            "incremental_build", "tidy_debug", "tidy_max_concurrency", "tidy_timeout_seconds",
+            "cache_dir", "compile_cache", "compile_cache_max_mb", "section_cache",
+            "section_cache_max_mb", "output_cache_max_mb", "code_index", "code_search_max_depth", "fsync_output");
+
+    private final SortedMap<String,String> entries;
+
+    private BuildManifest(SortedMap<String,String> entries) {
+        this.entries = entries;
+    }
+
+    /** incremental_build = true (default false when absent). */
+    public static boolean enabled(Config config) {
+        String flag = config.get("incremental_build");
+        return flag != null && flag.trim().equalsIgnoreCase("true");
+    }
+
+    public static Path manifestPath(Path outputPath) {
+        return outputPath.resolveSibling(outputPath.getFileName() + SUFFIX);
+    }
+
+    /** Hashes the current inputs of one unit (codePath may be null when no code file was located). */
+    public static BuildManifest compute(Config config, Path codePath) throws IOException {
+        SortedMap<String,String> e = new TreeMap<>();
+        e.put("generator", GENERATOR);
+
+        for (String key : config.rawValues().keySet()) {
+            if (NOT_RENDERED.contains(key)) continue;
+            e.put("config." + key, String.valueOf(config.getResolved(key)));
+            if (key.endsWith("_file_address") && !key.equals("output_file_address")) {
+                // Inputs of disabled sections cannot affect the output and are not read
+                e.put("file." + key, config.isInputNeeded(key) ? fileHash(config.getResolvedPath(key)) : "disabled");
+            }
+        }
+
+        String themeName = config.get("theme");
+        Path themeFile = (themeName == null) ? null : ThemeLoader.locate(themeName, config.getConfigDir());
+        e.put("theme", themeFile == null ? "builtin" : themeFile + " " + fileHash(themeFile));
+
+        if (codePath == null) {
+            e.put("code", "none");
+        } else {
+            Path code = codePath.toAbsolutePath().normalize();
+            e.put("code", code + " " + fileHash(code));
+            Path dir = code.getParent();
+            if (dir != null && Files.isDirectory(dir)) {
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.java")) {
+                    for (Path p : ds) {
+                        if (!p.toAbsolutePath().normalize().equals(code)) {
+                            e.put("source." + p.getFileName(), fileHash(p));
+                        }
+                    }
+                }
+            }
+        }
+        return new BuildManifest(e);
+    }
+
+    /**
+     * True when the manifest next to outputPath lists exactly these inputs and the output file
+     * still has the recorded hash. Unreadable or malformed manifests count as out of date.
+     */
+    public boolean upToDate(Path outputPath) {
+        Path manifest = manifestPath(outputPath);
+        if (!Files.isRegularFile(manifest) || !Files.isRegularFile(outputPath)) return false;
+        try {
+            SortedMap<String,String> recorded = read(manifest);
+            String outputHash = recorded.remove(OUTPUT_KEY);
+            return outputHash != null
+                    && recorded.equals(entries)
+                    && outputHash.equals(ContentHash.sha256(outputPath));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Writes the manifest for the output file that was just written. */
+    public void record(Path outputPath) throws IOException {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# Build manifest for ").append(outputPath.getFileName())
+          .append(" (incremental_build); delete to force regeneration\n");
+        for (Map.Entry<String,String> en : entries.entrySet()) {
+            sb.append(en.getKey()).append(" = ").append(en.getValue()).append('\n');
+        }
+        sb.append(OUTPUT_KEY).append(" = ").append(ContentHash.sha256(outputPath)).append('\n');
+        Utils.writeFile(manifestPath(outputPath).toString(), sb.toString());
+    }
+
+    /** Entries whose value differs from (or is absent in) the manifest next to outputPath. */
+    public List<String> changedSince(Path outputPath) {
+        SortedMap<String,String> recorded;
+        try {
+            recorded = read(manifestPath(outputPath));
+        } catch (IOException e) {
+            return List.of("(no previous manifest)");
+        }
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String,String> en : entries.entrySet()) {
+            if (!en.getValue().equals(recorded.get(en.getKey()))) changed.add(en.getKey());
+        }
+        for (String key : recorded.keySet()) {
+            if (!key.equals(OUTPUT_KEY) && !entries.containsKey(key)) changed.add(key);
+        }
+        return changed;
+    }
+
+    private static SortedMap<String,String> read(Path manifest) throws IOException {
+        SortedMap<String,String> out = new TreeMap<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int sep = line.indexOf(" = ");
+            if (sep < 0) throw new IOException("Malformed manifest line: " + line);
+            out.put(line.substring(0, sep), line.substring(sep + 3));
+        }
+        return out;
+    }
+
+    private static String fileHash(Path p) {
+        if (p == null) return "unset";
+        if (!Files.isRegularFile(p)) return "missing";
+        try {
+            return ContentHash.sha256(p);
+        } catch (IOException e) {
+            return "unreadable";
+        }
+    }
+}
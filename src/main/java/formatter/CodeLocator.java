@@ -3,9 +3,13 @@
 package formatter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Minimal fallback locator for the Java source file.
@@ -14,12 +18,31 @@ import java.util.List;
  *  1. Use resolved code_file_address if it points to a file.
  *  2. Else scan under config directory for Unit_<UNIT_NUMBER>/Discussion_Assignment.java
  *
- * No new config keys required.
+ * The scan prunes build/VCS directories (.git, build, out, node_modules, .gradle and hidden
+ * dirs), does not follow symlinks, stops at code_search_max_depth (default 8) and lists
+ * sibling subtrees in parallel. Every Discussion_Assignment.java it sees goes into an index
+ * for the config directory (all units at once), together with the mtime of each directory
+ * walked. Later lookups - for any unit - only stat those directories: when none changed, no
+ * file was added, removed or renamed below the root and the index answers directly; a changed
+ * directory is re-listed on its own (new subdirectories are walked, vanished ones dropped), so
+ * writing the output next to the inputs costs one listing rather than a new scan. The index
+ * is kept in memory and under <cache_dir>/code-index (code_index = false disables both).
  */
 public final class CodeLocator {
 
     private CodeLocator() {}
 
+    static final Set<String> PRUNED_DIRS = Set.of(".git", "build", "out", "node_modules", ".gradle");
+
+    private static final String FILE_NAME = "Discussion_Assignment.java";
+    private static final String INDEX_HEADER = "# code index v1";
+    private static final int DEFAULT_MAX_DEPTH = 8;
+    private static final long RACY_MILLIS = 2000;
+    private static final Map<Path,Index> INDEXES = new ConcurrentHashMap<>();
+
+    /** Directories walked (relative path -> mtime) and the candidate files found under them. */
+    private record Index(int maxDepth, Map<String,Long> dirMtimes, List<String> files) {}
+
     public static Path locate(Config config) {
         String resolved = config.getResolved("code_file_address");
         if (resolved != null && !resolved.isBlank()) {
@@ -33,19 +56,15 @@ public final class CodeLocator {
         if (unit == null || unit.isBlank()) return null;
 
         Path root = config.getConfigDir();
-        String needle = "Unit_" + unit + "/Discussion_Assignment.java";
+        String needle = "Unit_" + unit + "/" + FILE_NAME;
+        int maxDepth = Utils.positiveInt(config.get("code_search_max_depth"), DEFAULT_MAX_DEPTH);
+        Index index = index(config, root, maxDepth);
+
         List<Path> matches = new ArrayList<>();
-        try {
-            Files.walk(root)
-                 .filter(p -> p.toString().endsWith("Discussion_Assignment.java"))
-                 .forEach(p -> {
-                     String unixRel = root.relativize(p).toString().replace('\\','/');
-                     if (unixRel.contains(needle)) {
-                         matches.add(p);
-                     }
-                 });
-        } catch (IOException e) {
-            System.out.println("Code scan failed: " + e.getMessage());
+        for (String rel : index.files()) {
+            if (rel.contains(needle)) {
+                matches.add(root.resolve(rel));
+            }
         }
 
         if (matches.isEmpty()) return null;
@@ -60,6 +79,11 @@ public final class CodeLocator {
         return best;
     }
 
+    /** True for directory names the scans never descend into. */
+    static boolean isPruned(String dirName) {
+        return PRUNED_DIRS.contains(dirName) || dirName.startsWith(".");
+    }
+
     private static Path resolveAgainstConfigDir(Config config, String raw) {
         Path p = Paths.get(raw);
         if (!p.isAbsolute()) {
@@ -67,4 +91,231 @@ public final class CodeLocator {
         }
         return p.normalize();
     }
-}
\ No newline at end of file
+
+    /* ---------- index ---------- */
+
+    private static Index index(Config config, Path root, int maxDepth) {
+        String flag = config.get("code_index");
+        boolean persistent = flag == null || !flag.trim().equalsIgnoreCase("false");
+        if (!persistent) return walk(root, maxDepth);
+
+        Path key = root.toAbsolutePath().normalize();
+        Index cached = INDEXES.get(key);
+        Path file = CompilationCache.cacheRoot(config).resolve("code-index")
+                .resolve(ContentHash.sha256(key.toString()) + ".idx");
+        if (cached == null) {
+            cached = read(file);
+        }
+        Index fresh;
+        if (cached != null && cached.maxDepth() == maxDepth) {
+            fresh = refresh(root, cached);
+            if (fresh == cached) {
+                INDEXES.put(key, cached);
+                return cached;
+            }
+        } else {
+            fresh = walk(root, maxDepth);
+        }
+        INDEXES.put(key, fresh);
+        try {
+            write(file, fresh);
+        } catch (IOException e) {
+            System.out.println("Code index write failed: " + e.getMessage());
+        }
+        return fresh;
+    }
+
+    /** The same index when no recorded directory changed, else one with the changed directories re-listed. */
+    private static Index refresh(Path root, Index index) {
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String,Long> e : index.dirMtimes().entrySet()) {
+            if (mtime(root.resolve(e.getKey())) != e.getValue()) changed.add(e.getKey());
+        }
+        if (changed.isEmpty()) return index;
+
+        TreeMap<String,Long> dirs = new TreeMap<>(index.dirMtimes());
+        TreeSet<String> files = new TreeSet<>(index.files());
+        for (String rel : changed) { // sorted: parents before children
+            if (!dirs.containsKey(rel)) continue; // dropped with a vanished parent
+            String prefix = rel.isEmpty() ? "" : rel + "/";
+            Path dir = root.resolve(rel);
+            if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                dirs.remove(rel);
+                dirs.keySet().removeIf(d -> d.startsWith(prefix));
+                files.removeIf(f -> f.startsWith(prefix));
+                continue;
+            }
+            // Re-list just this directory; known subdirectories are checked on their own
+            files.removeIf(f -> f.startsWith(prefix) && f.indexOf('/', prefix.length()) < 0);
+            Map<String,Long> listedDirs = new HashMap<>();
+            List<String> listedFiles = new ArrayList<>();
+            List<Path> subdirs = list(root, dir, depthOf(rel), index.maxDepth(), listedDirs, listedFiles);
+            dirs.putAll(listedDirs);
+            files.addAll(listedFiles);
+
+            Set<String> present = new HashSet<>();
+            for (Path sub : subdirs) {
+                String subRel = relative(root, sub);
+                present.add(subRel);
+                if (!dirs.containsKey(subRel)) { // new subtree
+                    Index added = walk(root, sub, depthOf(subRel), index.maxDepth());
+                    dirs.putAll(added.dirMtimes());
+                    files.addAll(added.files());
+                }
+            }
+            List<String> vanished = new ArrayList<>();
+            for (String d : dirs.keySet()) {
+                if (d.startsWith(prefix) && d.length() > prefix.length() && d.indexOf('/', prefix.length()) < 0
+                        && !present.contains(d)) {
+                    vanished.add(d);
+                }
+            }
+            for (String d : vanished) {
+                dirs.remove(d);
+                dirs.keySet().removeIf(x -> x.startsWith(d + "/"));
+                files.removeIf(f -> f.startsWith(d + "/"));
+            }
+        }
+        return new Index(index.maxDepth(), dirs, new ArrayList<>(files));
+    }
+
+    private static Index walk(Path root, int maxDepth) {
+        return walk(root, root, 0, maxDepth);
+    }
+
+    /** Parallel walk of the subtree at dir (depth below root), not following symlinks. */
+    private static Index walk(Path root, Path dir, int depth, int maxDepth) {
+        Map<String,Long> dirs = new ConcurrentHashMap<>();
+        List<String> files = Collections.synchronizedList(new ArrayList<>());
+        ForkJoinPool.commonPool().invoke(new DirTask(root, dir, depth, maxDepth, dirs, files));
+        List<String> sorted = new ArrayList<>(files);
+        Collections.sort(sorted);
+        return new Index(maxDepth, new TreeMap<>(dirs), sorted);
+    }
+
+    /**
+     * Lists one directory: records its mtime and the candidate files in it, and returns the
+     * subdirectories to descend into (unpruned and within maxDepth).
+     */
+    private static List<Path> list(Path root, Path dir, int depth, int maxDepth,
+                                   Map<String,Long> dirs, List<String> files) {
+        List<Path> subdirs = new ArrayList<>();
+        try {
+            // mtime before listing: an entry added during the listing makes the index stale, not wrong.
+            // A very recent mtime may hide a later change within the same timestamp tick (coarse
+            // file systems), so such directories are recorded as unknown and re-listed next time.
+            long mtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+            dirs.put(relative(root, dir), System.currentTimeMillis() - mtime < RACY_MILLIS ? -2L : mtime);
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path p : ds) {
+                    BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    String name = p.getFileName().toString();
+                    if (attrs.isDirectory()) {
+                        if (depth + 1 < maxDepth && !isPruned(name)) subdirs.add(p);
+                    } else if (attrs.isRegularFile() && name.endsWith(FILE_NAME)) {
+                        files.add(relative(root, p));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Code scan failed: " + e.getMessage());
+        }
+        return subdirs;
+    }
+
+    /** Lists one directory and forks one task per subdirectory. */
+    private static final class DirTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path dir;
+        private final int depth;
+        private final int maxDepth;
+        private final Map<String,Long> dirs;
+        private final List<String> files;
+
+        DirTask(Path root, Path dir, int depth, int maxDepth, Map<String,Long> dirs, List<String> files) {
+            this.root = root;
+            this.dir = dir;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.dirs = dirs;
+            this.files = files;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirTask> children = new ArrayList<>();
+            for (Path sub : list(root, dir, depth, maxDepth, dirs, files)) {
+                children.add(new DirTask(root, sub, depth + 1, maxDepth, dirs, files));
+            }
+            invokeAll(children);
+        }
+    }
+
+    private static String relative(Path root, Path p) {
+        return root.relativize(p).toString().replace('\\', '/');
+    }
+
+    private static int depthOf(String rel) {
+        if (rel.isEmpty()) return 0;
+        int d = 1;
+        for (int i = 0; i < rel.length(); i++) {
+            if (rel.charAt(i) == '/') d++;
+        }
+        return d;
+    }
+
+    private static long mtime(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+        } catch (IOException e) {
+            return -1; // removed
+        }
+    }
+
+    private static Index read(Path file) {
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(INDEX_HEADER)) return null;
+            int maxDepth = -1;
+            Map<String,Long> dirs = new TreeMap<>();
+            List<String> files = new ArrayList<>();
+            for (String line : lines.subList(1, lines.size())) {
+                if (line.startsWith("depth ")) {
+                    maxDepth = Integer.parseInt(line.substring(6));
+                } else if (line.startsWith("dir ")) {
+                    int sp = line.indexOf(' ', 4);
+                    dirs.put(line.substring(sp + 1), Long.parseLong(line.substring(4, sp)));
+                } else if (line.startsWith("file ")) {
+                    files.add(line.substring(5));
+                }
+            }
+            return (maxDepth < 0 || dirs.isEmpty()) ? null : new Index(maxDepth, dirs, files);
+        } catch (IOException | RuntimeException e) {
+            return null; // corrupt / concurrently replaced index: rebuild
+        }
+    }
+
+    private static void write(Path file, Index index) throws IOException {
+        StringBuilder sb = new StringBuilder(64 * (index.dirMtimes().size() + index.files().size()));
+        sb.append(INDEX_HEADER).append('\n');
+        sb.append("depth ").append(index.maxDepth()).append('\n');
+        for (Map.Entry<String,Long> e : index.dirMtimes().entrySet()) {
+            sb.append("dir ").append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+        }
+        for (String f : index.files()) {
+            sb.append("file ").append(f).append('\n');
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), "index", ".tmp");
+        try {
+            Files.writeString(tmp, sb, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+// Current filename: CompilationCache.java
+
+package formatter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Persistent, content-addressed cache of in-memory compilation results.
+ *
+ * Key: SHA-256 of (compiler version, compiler options, source path relative to the
+ * package root, source bytes). Each entry stores the class bytes and the compiler
+ * diagnostics, plus the hashes of the other .java files the compilation depended on
+ * (sourcepath siblings and the files sitting next to the source); an entry whose
+ * dependencies changed is treated as a miss. Only successful compilations are stored: a
+ * failure can hinge on a file that does not exist yet (a missing class), which no recorded
+ * dependency hash would ever notice appearing.
+ *
+ * Layout: <cache_dir>/compile/<key>.bin, evicted least recently used first beyond the size
+ * bound (see DiskLruCache).
+ *
+ * Config keys:
+ *   compile_cache        = true | false         (default true)
+ *   cache_dir            = directory            (default ~/.discussion_post_formatter/cache)
+ *   compile_cache_max_mb = positive integer     (default 64; 0 or out of range = default)
+ */
+public final class CompilationCache extends DiskLruCache {
+
+    private static final int MAGIC = 0x44504643; // "DPFC"
+    private static final String COMPILER_ID = "javac " + Runtime.version();
+
+    private CompilationCache(Path dir) {
+        super(dir, ".bin", "Compilation cache");
+    }
+
+    /** One instance per cache directory; maxBytes replaces the size bound of an existing instance. */
+    public static CompilationCache open(Path dir, long maxBytes) {
+        return open(dir, maxBytes, CompilationCache.class, CompilationCache::new);
+    }
+
+    /** Returns null when compile_cache = false. */
+    public static CompilationCache forConfig(Config config) {
+        String flag = config.get("compile_cache");
+        if (flag != null && flag.trim().equalsIgnoreCase("false")) return null;
+        long maxMb = Utils.positiveInt(config.get("compile_cache_max_mb"), 64);
+        return open(cacheRoot(config).resolve("compile"), maxMb * 1024 * 1024);
+    }
+
+    /** Root directory shared by all on-disk caches (cache_dir, resolved against the config directory). */
+    public static Path cacheRoot(Config config) {
+        String raw = config.get("cache_dir");
+        if (raw == null || raw.isBlank()) {
+            return Paths.get(System.getProperty("user.home"), ".discussion_post_formatter", "cache");
+        }
+        Path p = Paths.get(raw.trim());
+        return (p.isAbsolute() ? p : config.getConfigDir().resolve(p)).normalize();
+    }
+
+    /* -------------------------------------------------------
+     * Lookup / store
+     * ------------------------------------------------------- */
+
+    /**
+     * Returns the cached compilation for sourceFile, or compiles it (storing it when it succeeded).
+     */
+    public InMemoryJavaRunner.Compilation compile(Path sourceFile, Path sourceRoot) throws IOException {
+        String key = keyFor(sourceFile, sourceRoot);
+        Path entry = entry(key);
+
+        InMemoryJavaRunner.Compilation cached = read(entry, sourceFile);
+        if (cached != null) {
+            hit();
+            touch(entry);
+            return cached;
+        }
+        miss();
+
+        InMemoryJavaRunner.Compilation fresh = InMemoryJavaRunner.compile(sourceFile, sourceRoot);
+        if (!fresh.success()) return fresh;
+        try {
+            write(key, sourceFile, fresh);
+        } catch (IOException e) {
+            System.out.println("Compilation cache write failed: " + e.getMessage());
+        }
+        return fresh;
+    }
+
+    private static String keyFor(Path sourceFile, Path sourceRoot) throws IOException {
+        MessageDigest md = ContentHash.newDigest();
+        ContentHash.update(md, COMPILER_ID);
+        ContentHash.update(md, String.join(" ", InMemoryJavaRunner.COMPILER_OPTIONS));
+        Path root = sourceRoot.toAbsolutePath().normalize();
+        ContentHash.update(md, root.relativize(sourceFile.toAbsolutePath().normalize()).toString().replace('\\', '/'));
+        md.update(Files.readAllBytes(sourceFile));
+        return ContentHash.hex(md.digest());
+    }
+
+    /** Sources whose change must invalidate the entry (excluding the keyed source itself). */
+    private static SortedMap<String,String> dependencyHashes(Path sourceFile, Collection<Path> compiledSources)
+            throws IOException {
+        Path self = sourceFile.toAbsolutePath().normalize();
+        Set<Path> deps = new TreeSet<>(compiledSources);
+        Path parent = self.getParent();
+        if (parent != null) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(parent, "*.java")) {
+                for (Path p : ds) deps.add(p.toAbsolutePath().normalize());
+            }
+        }
+        deps.remove(self);
+        SortedMap<String,String> out = new TreeMap<>();
+        for (Path p : deps) {
+            out.put(p.toString(), Files.isRegularFile(p) ? ContentHash.sha256(p) : "");
+        }
+        return out;
+    }
+
+    private InMemoryJavaRunner.Compilation read(Path entry, Path sourceFile) {
+        if (!Files.isRegularFile(entry)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC) return null;
+            boolean success = in.readBoolean();
+            if (!success) return null; // written by an older version that still stored failures
+            String diagnostics = readString(in);
+
+            int depCount = in.readInt();
+            SortedMap<String,String> recorded = new TreeMap<>();
+            Set<Path> sources = new TreeSet<>();
+            for (int i = 0; i < depCount; i++) {
+                String path = readString(in);
+                recorded.put(path, readString(in));
+                sources.add(Paths.get(path));
+            }
+            sources.add(sourceFile.toAbsolutePath().normalize());
+            if (!recorded.equals(dependencyHashes(sourceFile, sources))) return null;
+
+            int classCount = in.readInt();
+            Map<String,byte[]> classes = new TreeMap<>();
+            for (int i = 0; i < classCount; i++) {
+                String name = readString(in);
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes.put(name, bytes);
+            }
+            return new InMemoryJavaRunner.Compilation(success, diagnostics, classes, sources);
+        } catch (IOException | RuntimeException e) {
+            return null; // corrupt / concurrently replaced entry: treat as miss
+        }
+    }
+
+    private void write(String key, Path sourceFile, InMemoryJavaRunner.Compilation c) throws IOException {
+        SortedMap<String,String> deps = dependencyHashes(sourceFile, c.sources());
+        store(key, os -> {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(MAGIC);
+            out.writeBoolean(c.success());
+            writeString(out, c.diagnostics());
+            out.writeInt(deps.size());
+            for (Map.Entry<String,String> d : deps.entrySet()) {
+                writeString(out, d.getKey());
+                writeString(out, d.getValue());
+            }
+            out.writeInt(c.classes().size());
+            for (Map.Entry<String,byte[]> e : c.classes().entrySet()) {
+                writeString(out, e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+            out.flush();
+        });
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
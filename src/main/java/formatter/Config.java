@@ -8,6 +8,12 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Configuration loader/persister.
@@ -16,7 +22,9 @@ import java.util.*;
  *  - Preserves comments and blank lines.
  *  - Resolves <UNIT_NUMBER> token.
  *  - Loads the contents of every key ending with _file_address into a derived key
- *    whose name ends with FileContents (camelCase conversion).
+ *    whose name ends with FileContents (camelCase conversion). Files are read lazily on
+ *    the first get(key, true); prefetch() reads the inputs of all enabled sections
+ *    concurrently, and inputs of disabled sections (SECTION_TOGGLES) are never read.
  *  - Resolves relative paths against the directory that contains config.txt
  *    (improves portability vs depending on current working directory).
  *
@@ -35,22 +43,46 @@ public final class Config {
 
     private final List<Line> lines;
     private final LinkedHashMap<String,String> values;
-    private final LinkedHashMap<String,String> derivedValues;
+    private final ConcurrentHashMap<String,String> derivedValues;
     private final Path sourcePath;
     private final Path configDir;
 
     private static final String MISSING_PREFIX = "[MISSING FILE:";
     private static final String UNREADABLE_PREFIX = "[UNREADABLE FILE:";
 
+    /** Section toggle gating each input file; inputs not listed are always needed (code, stdin). */
+    private static final Map<String,String> SECTION_TOGGLES = Map.ofEntries(
+            Map.entry("assignment_text_file_address", "include_assignment_text"),
+            Map.entry("assignment_sample_code_file_address", "include_sample_code"),
+            Map.entry("introduction_text_file_address", "include_introduction"),
+            Map.entry("explanation1_text_file_address", "include_explanation1"),
+            Map.entry("explanation2_text_file_address", "include_explanation2"),
+            Map.entry("assignment_text_for_discussion_question_file_address",
+                    "include_assignment_text_for_discussion_question"),
+            Map.entry("discussion_question_file_address", "include_discussion_question"),
+            Map.entry("references_file_address", "include_references"),
+            Map.entry("compiler_messages_file_address", "include_compiler_messages"),
+            Map.entry("program_output_file_address", "include_program_output"));
+
     private Config(List<Line> lines,
                    LinkedHashMap<String,String> values,
                    Path sourcePath) {
+        this(lines, values, sourcePath, null, null);
+    }
+
+    private Config(List<Line> lines,
+                   LinkedHashMap<String,String> values,
+                   Path sourcePath,
+                   String overrideKey,
+                   String overrideValue) {
         this.lines = lines;
         this.values = values;
-        this.derivedValues = new LinkedHashMap<>();
+        this.derivedValues = new ConcurrentHashMap<>();
         this.sourcePath = sourcePath;
         this.configDir = sourcePath.toAbsolutePath().getParent();
-        loadDerivedFileContents();
+        if (overrideKey != null) {
+            set(overrideKey, overrideValue);
+        }
     }
 
     /* ------------ Loading / Reloading ------------ */
@@ -91,6 +123,27 @@ public final class Config {
         return load(sourcePath.toString());
     }
 
+    /**
+     * Detached copy with one value overridden (e.g. a different unit for batch mode).
+     * Derived file contents are resolved for the new value; nothing is written to disk
+     * unless save() is called on the copy.
+     */
+    public Config withValue(String key, String value) {
+        return new Config(new ArrayList<>(lines), new LinkedHashMap<>(values), sourcePath, key, value);
+    }
+
+    /**
+     * Detached copy whose derived content for contentKey (e.g. introductionTextFileContents) is
+     * the given text instead of the file's; used for raw inputs in daemon mode. Contents already
+     * loaded are carried over. A later set() on the copy drops the override again.
+     */
+    public Config withContent(String contentKey, String text) {
+        Config copy = new Config(new ArrayList<>(lines), new LinkedHashMap<>(values), sourcePath);
+        copy.derivedValues.putAll(derivedValues);
+        copy.derivedValues.put(contentKey, text);
+        return copy;
+    }
+
     /* ------------ Getters / Mutation ------------ */
 
     public String get(String key) {
@@ -111,6 +164,7 @@ public final class Config {
             lines.add(new EntryLine(key, value, "", ""));
         }
         values.put(key, value);
+        derivedValues.clear(); // paths may resolve differently now (e.g. a new unit)
     }
 
     public Path getConfigDir() {
@@ -123,22 +177,106 @@ public final class Config {
         return resolvePlaceholders(raw);
     }
 
+    /**
+     * Resolved value of a path key (placeholders substituted, relative paths resolved
+     * against the config directory), or null when the key is unset/blank.
+     */
+    public Path getResolvedPath(String key) {
+        String resolved = getResolved(key);
+        if (resolved == null || resolved.isBlank()) return null;
+        return resolvePath(resolved);
+    }
+
     /**
      * Access to derived loaded file contents (the key is the camelCase + FileContents).
+     * The file is read on first access and kept for the life of this Config.
      * May now contain diagnostic markers such as:
      *   [MISSING FILE:<absolutePath>]
      *   [UNREADABLE FILE:<absolutePath>] <message>
      */
     public String get(String key, boolean derived) {
-        return derived ? derivedValues.get(key) : values.get(key);
+        if (!derived) return values.get(key);
+        String loaded = derivedValues.get(key);
+        if (loaded != null) return loaded;
+        String addressKey = addressKeyFor(key);
+        if (addressKey == null) return null;
+        loaded = readFileContents(addressKey);
+        if (loaded == null) return null;
+        String raced = derivedValues.putIfAbsent(key, loaded);
+        return raced != null ? raced : loaded;
     }
 
     public Map<String,String> rawValues() {
         return Collections.unmodifiableMap(values);
     }
 
+    /** All derived contents; reads every input file that was not loaded yet, enabled or not. */
     public Map<String,String> derivedValues() {
-        return Collections.unmodifiableMap(derivedValues);
+        LinkedHashMap<String,String> all = new LinkedHashMap<>();
+        for (String key : values.keySet()) {
+            if (!key.endsWith("_file_address")) continue;
+            String contentKey = toContentKey(key);
+            String v = get(contentKey, true);
+            if (v != null) all.put(contentKey, v);
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    /** Toggle semantics used by the generator: absent = enabled, only "false" disables. */
+    public boolean isEnabled(String toggleKey) {
+        String v = values.get(toggleKey);
+        return v == null || !v.trim().equalsIgnoreCase("false");
+    }
+
+    /** False when the input feeds a section that is switched off (or is the output file). */
+    public boolean isInputNeeded(String fileAddressKey) {
+        if (fileAddressKey.equals("output_file_address")) return false;
+        String toggle = SECTION_TOGGLES.get(fileAddressKey);
+        return toggle == null || isEnabled(toggle);
+    }
+
+    /**
+     * Reads the inputs of all enabled sections concurrently, so the generator's later
+     * get(key, true) calls are map lookups. Safe to call more than once. The reads run on one
+     * small daemon pool shared by every Config in the JVM, created on first use.
+     */
+    public void prefetch() {
+        List<String> pending = new ArrayList<>();
+        for (String key : values.keySet()) {
+            if (key.endsWith("_file_address") && isInputNeeded(key)
+                    && !derivedValues.containsKey(toContentKey(key))) {
+                pending.add(toContentKey(key));
+            }
+        }
+        if (pending.size() <= 1) {
+            for (String contentKey : pending) get(contentKey, true);
+            return;
+        }
+        List<Future<String>> futures = new ArrayList<>();
+        try {
+            for (String contentKey : pending) {
+                futures.add(PrefetchPool.EXECUTOR.submit(() -> get(contentKey, true)));
+            }
+            for (Future<String> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<String> f : futures) f.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // get(key, true) turns I/O failures into markers; anything else surfaces on the lazy path
+        }
+    }
+
+    /** Lazily created (on first prefetch) pool of daemon reader threads. */
+    private static final class PrefetchPool {
+        private static final int THREADS = 8;
+        private static final AtomicInteger SEQ = new AtomicInteger();
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "config-prefetch-" + SEQ.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     public void save() throws IOException {
@@ -173,38 +311,43 @@ public final class Config {
         return s != null && s.startsWith(UNREADABLE_PREFIX);
     }
 
+    /** True when contentKey is the derived key of a section input (e.g. introductionTextFileContents). */
+    public static boolean isSectionContentKey(String contentKey) {
+        for (String addressKey : SECTION_TOGGLES.keySet()) {
+            if (toContentKey(addressKey).equals(contentKey)) return true;
+        }
+        return false;
+    }
+
     /* ------------ Internal Helpers ------------ */
 
-    private void loadDerivedFileContents() {
-        for (Map.Entry<String,String> entry : values.entrySet()) {
-            String key = entry.getKey();
-            if (!key.endsWith("_file_address")) continue;
+    /** The *_file_address key whose derived content key is contentKey, or null. */
+    private String addressKeyFor(String contentKey) {
+        for (String key : values.keySet()) {
+            if (key.endsWith("_file_address") && toContentKey(key).equals(contentKey)) return key;
+        }
+        return null;
+    }
 
-            String substituted = resolvePlaceholders(entry.getValue());
-            if (substituted == null || substituted.isBlank()) continue;
+    /** File contents (or a diagnostic marker) for a *_file_address key; null when the path is blank. */
+    private String readFileContents(String key) {
+        String substituted = resolvePlaceholders(values.get(key));
+        if (substituted == null || substituted.isBlank()) return null;
 
-            Path resolvedPath = resolvePath(substituted);
-            String contentKey = toContentKey(key);
+        Path resolvedPath = resolvePath(substituted);
 
-            if (resolvedPath != null && Files.isRegularFile(resolvedPath) && Files.isReadable(resolvedPath)) {
-                try {
-                    String fileData = Files.readString(resolvedPath, StandardCharsets.UTF_8);
-                    derivedValues.put(contentKey, fileData);
-                } catch (IOException ioe) {
-                    derivedValues.put(contentKey,
-                            UNREADABLE_PREFIX + resolvedPath.toAbsolutePath() + "] " + ioe.getMessage());
-                }
-            } else {
-                if (resolvedPath != null && !Files.exists(resolvedPath)) {
-                    derivedValues.put(contentKey,
-                            MISSING_PREFIX + resolvedPath.toAbsolutePath() + "]");
-                } else {
-                    // Exists but not readable or not a regular file
-                    derivedValues.put(contentKey,
-                            UNREADABLE_PREFIX + resolvedPath.toAbsolutePath() + "] Not a readable regular file");
-                }
+        if (resolvedPath != null && Files.isRegularFile(resolvedPath) && Files.isReadable(resolvedPath)) {
+            try {
+                return Files.readString(resolvedPath, StandardCharsets.UTF_8);
+            } catch (IOException ioe) {
+                return UNREADABLE_PREFIX + resolvedPath.toAbsolutePath() + "] " + ioe.getMessage();
             }
         }
+        if (resolvedPath != null && !Files.exists(resolvedPath)) {
+            return MISSING_PREFIX + resolvedPath.toAbsolutePath() + "]";
+        }
+        // Exists but not readable or not a regular file
+        return UNREADABLE_PREFIX + resolvedPath.toAbsolutePath() + "] Not a readable regular file";
     }
 
     private Path resolvePath(String pathString) {
@@ -215,7 +358,7 @@ public final class Config {
         return p.normalize();
     }
 
-    private String toContentKey(String fileAddressKey) {
+    private static String toContentKey(String fileAddressKey) {
         String base = fileAddressKey.substring(0, fileAddressKey.length() - "_file_address".length());
         String[] parts = base.split("_");
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,63 @@
+// Current filename: ContentHash.java
+
+package formatter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 helpers used by the on-disk caches (hex-encoded, lowercase).
+ */
+public final class ContentHash {
+
+    private ContentHash() {}
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String sha256(byte[] data) {
+        return hex(newDigest().digest(data));
+    }
+
+    public static String sha256(String text) {
+        return sha256(text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String sha256(Path file) throws IOException {
+        MessageDigest md = newDigest();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+        return hex(md.digest());
+    }
+
+    /** Adds a string followed by a NUL separator, so concatenated fields cannot collide. */
+    public static void update(MessageDigest md, String field) {
+        if (field != null) md.update(field.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    public static String hex(byte[] digest) {
+        char[] out = new char[digest.length * 2];
+        final char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < digest.length; i++) {
+            out[i * 2] = digits[(digest[i] >> 4) & 0xF];
+            out[i * 2 + 1] = digits[digest[i] & 0xF];
+        }
+        return new String(out);
+    }
+}
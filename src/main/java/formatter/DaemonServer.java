@@ -0,0 +1,469 @@
+// Current filename: DaemonServer.java
+
+package formatter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
+
+/**
+ * Daemon mode: one warm JVM serving renders over HTTP on the loopback interface, so editor
+ * integrations and scripts skip JVM startup, class loading and a cold JIT on every post.
+ *
+ * Usage:
+ *   java formatter.DiscussionPostFormatter --serve [--config path] [--port N] [--threads N]
+ *   (port 0-65535, 0 = any free port; threads 1-256, default: CPU count)
+ *
+ * Every request must come from a loopback client and carry:
+ *   Host: 127.0.0.1:<port> | localhost:<port> | [::1]:<port>   (defeats DNS rebinding)
+ *   X-Formatter-Token: <token>   (or Authorization: Bearer <token>); the random token is
+ *                                generated per start and written to <cache_dir>/serve-<port>.token
+ * and requests whose Origin header names anything else are refused, so a web page in a local
+ * browser can neither trigger renders nor read their results.
+ *
+ * Endpoints (bound to 127.0.0.1 only):
+ *   GET|POST /render     rendered HTML of one post (nothing is written to disk)
+ *   POST     /highlight  many Java snippets highlighted with one theme, as a JSON array
+ *   GET      /health     "ok" plus cache statistics
+ *
+ * /render parameters, from the query string and/or an application/x-www-form-urlencoded body:
+ *   config=<path>               config file under the startup config's directory (default: that one)
+ *   unit=<digits>               overrides; only these keys are accepted (paths, the code file and
+ *   theme=<name>                cache settings come from the config file itself)
+ *   include_<section>=true|false
+ *   <name>FileContents=<text>   raw input used instead of the file, e.g. introductionTextFileContents;
+ *                               only section inputs are accepted (the code is always compiled from
+ *                               code_file_address on disk)
+ *
+ * The post is rendered into memory and sent once complete, so a render that fails part-way is
+ * answered with a 500 instead of a truncated 200.
+ *
+ * /highlight parameters (same encoding; snippet may repeat and results keep its order):
+ *   theme=<name>                theme for every snippet (default: the startup config's theme)
+ *   snippet=<java source>       one entry of the result array each ("" for a blank snippet)
+ *
+ * Examples (TOKEN=$(cat ~/.discussion_post_formatter/cache/serve-8737.token)):
+ *   curl -s -H "X-Formatter-Token: $TOKEN" --data-urlencode introductionTextFileContents@intro.txt \
+ *        'http://127.0.0.1:8737/render?unit=3'
+ *   curl -s -H "X-Formatter-Token: $TOKEN" --data-urlencode snippet@A.java --data-urlencode snippet@B.java \
+ *        'http://127.0.0.1:8737/highlight?theme=dark'
+ *
+ * Memory: requests are handled by the --threads workers, at most one each (others wait in the
+ * accept queue). A request body is capped at MAX_BODY_BYTES (4 MB) and /render holds the finished
+ * post in memory before sending it, so the request buffers stay below threads x (body + post).
+ *
+ * Every request loads its own Config, so concurrent renders never share mutable state, while
+ * the themes, the compilation/output caches and the in-memory section fragments stay warm for
+ * the life of the process. A warm-up render of the startup config runs before the port opens.
+ */
+public final class DaemonServer {
+
+    private DaemonServer() {}
+
+    private static final int DEFAULT_PORT = 8737;
+    private static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_THREADS = 256;
+    private static final String USAGE = "Usage: --serve [--config path] [--port 0-65535] [--threads 1-" + MAX_THREADS + "]";
+    private static final String CONTENT_SUFFIX = "FileContents";
+    private static final String TOKEN_HEADER = "X-Formatter-Token";
+    private static final Pattern THEME_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+    /** Client error: answered with its status (400 unless given) and the message. */
+    private static final class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        BadRequest(String message) {
+            this(400, message);
+        }
+
+        BadRequest(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /** Who may call: the Host values naming this server, and the per-start token. */
+    private record Access(Set<String> hosts, Set<String> origins, String token) {
+
+        static Access forPort(int port) {
+            Set<String> hosts = new HashSet<>();
+            Set<String> origins = new HashSet<>();
+            for (String h : List.of("127.0.0.1", "localhost", "[::1]")) {
+                hosts.add(h + ":" + port);
+                origins.add("http://" + h + ":" + port);
+            }
+            byte[] secret = new byte[24];
+            new SecureRandom().nextBytes(secret);
+            return new Access(hosts, origins, ContentHash.hex(secret));
+        }
+
+        void check(HttpExchange ex) throws BadRequest {
+            String host = ex.getRequestHeaders().getFirst("Host");
+            if (host == null || !hosts.contains(host.toLowerCase(Locale.ROOT))) {
+                throw new BadRequest(403, "Host not allowed");
+            }
+            String origin = ex.getRequestHeaders().getFirst("Origin");
+            if (origin != null && !origins.contains(origin.toLowerCase(Locale.ROOT))) {
+                throw new BadRequest(403, "Origin not allowed");
+            }
+            String given = ex.getRequestHeaders().getFirst(TOKEN_HEADER);
+            String auth = ex.getRequestHeaders().getFirst("Authorization");
+            if (given == null && auth != null && auth.startsWith("Bearer ")) {
+                given = auth.substring("Bearer ".length()).trim();
+            }
+            if (given == null || !MessageDigest.isEqual(given.getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8))) {
+                throw new BadRequest(401, "Missing or wrong " + TOKEN_HEADER);
+            }
+        }
+    }
+
+    public static int run(String[] args) throws Exception {
+        String configPath = "config.txt";
+        int port = DEFAULT_PORT;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--serve" -> { }
+                case "--config" -> configPath = (i + 1 < args.length) ? args[++i] : configPath;
+                case "--port" -> port = (i + 1 < args.length) ? intInRange(args[++i], 0, 65535) : -1;
+                case "--threads" -> threads = (i + 1 < args.length) ? intInRange(args[++i], 1, MAX_THREADS) : -1;
+                default -> {
+                    System.out.println("Unknown serve argument: " + args[i]);
+                    System.out.println(USAGE);
+                    return 2;
+                }
+            }
+        }
+
+        if (port < 0 || threads < 0) {
+            System.out.println(USAGE);
+            return 2;
+        }
+
+        Path defaultConfig = Paths.get(configPath).toAbsolutePath().normalize();
+        Config warm = Config.load(defaultConfig.toString());
+        long start = System.nanoTime();
+        DiscussionPostFormatter.renderPost(warm);
+        System.out.println("[serve] warm-up render of unit " + warm.get("unit") + " took "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        int boundPort = server.getAddress().getPort();
+        Access access = Access.forPort(boundPort);
+        Path tokenFile = writeToken(CompilationCache.cacheRoot(warm).resolve("serve-" + boundPort + ".token"), access.token());
+
+        ExecutorService pool = BatchRunner.newPool(threads, "serve-worker");
+        server.setExecutor(pool);
+        server.createContext("/render", ex -> handle(ex, access, () -> render(ex, defaultConfig)));
+        server.createContext("/highlight", ex -> handle(ex, access, () -> highlight(ex, warm)));
+        server.createContext("/health", ex -> handle(ex, access, () -> health(ex, warm)));
+        server.start();
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(0);
+            pool.shutdownNow();
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (IOException ignored) {
+                // stale token files are harmless: the next start writes a new token
+            }
+            stopped.countDown();
+        }, "serve-shutdown"));
+        System.out.println("[serve] listening on http://" + server.getAddress().getHostString() + ":"
+                + boundPort + "/render (" + threads + " worker(s)); Ctrl+C to stop");
+        System.out.println("[serve] token in " + tokenFile + " (send it as " + TOKEN_HEADER + ")");
+        stopped.await();
+        return 0;
+    }
+
+    /** The value when it is digits within [min, max], else -1. */
+    private static int intInRange(String raw, int min, int max) {
+        if (!raw.matches("\\d{1,9}")) return -1;
+        int v = Integer.parseInt(raw);
+        return (v >= min && v <= max) ? v : -1;
+    }
+
+    /* -------------------------------------------------------
+     * Handlers
+     * ------------------------------------------------------- */
+
+    @FunctionalInterface
+    private interface Handler {
+        void handle() throws Exception;
+    }
+
+    private static void handle(HttpExchange ex, Access access, Handler handler) {
+        long start = System.nanoTime();
+        String status;
+        try {
+            access.check(ex);
+            handler.handle();
+            status = String.valueOf(ex.getResponseCode());
+        } catch (BadRequest e) {
+            status = String.valueOf(sendText(ex, e.status, e.getMessage()));
+        } catch (Exception e) {
+            String msg = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            // Responses are sent whole, so headers already out means only the client write failed
+            status = (ex.getResponseCode() > 0)
+                    ? ex.getResponseCode() + " aborted: " + msg
+                    : String.valueOf(sendText(ex, 500, "Request failed: " + msg));
+        } finally {
+            ex.close();
+        }
+        System.out.println("[serve] " + ex.getRequestMethod() + " " + ex.getRequestURI().getPath()
+                + " -> " + status + " (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
+    }
+
+    private static void render(HttpExchange ex, Path defaultConfig) throws Exception {
+        String method = ex.getRequestMethod();
+        if (!method.equals("GET") && !method.equals("POST")) {
+            ex.getResponseHeaders().set("Allow", "GET, POST");
+            sendText(ex, 405, "Use GET or POST");
+            return;
+        }
+
+        Map<String,String> params = new LinkedHashMap<>();
+        for (Map.Entry<String,String> p : formParams(ex)) {
+            params.put(p.getKey(), p.getValue()); // later values win
+        }
+
+        String configPath = params.remove("config");
+        Path configFile = (configPath == null) ? defaultConfig : allowedConfig(defaultConfig, configPath);
+        Config config;
+        try {
+            config = Config.load(configFile.toString());
+        } catch (IOException e) {
+            throw new BadRequest("Cannot load config: " + e.getMessage());
+        }
+
+        Map<String,String> contents = new LinkedHashMap<>();
+        for (Map.Entry<String,String> p : params.entrySet()) {
+            String key = p.getKey();
+            if (key.endsWith(CONTENT_SUFFIX)) {
+                if (key.equals("code" + CONTENT_SUFFIX)) {
+                    throw new BadRequest("The code is compiled from disk; override code_file_address instead");
+                }
+                if (!Config.isSectionContentKey(key)) {
+                    throw new BadRequest("Unknown input " + key + " (expected a section input such as introductionText"
+                            + CONTENT_SUFFIX + ")");
+                }
+                contents.put(key, p.getValue());
+            } else {
+                config.set(key, checkOverride(key, p.getValue()));
+            }
+        }
+        // Raw inputs last: set() drops previously loaded contents
+        for (Map.Entry<String,String> c : contents.entrySet()) {
+            config = config.withContent(c.getKey(), c.getValue());
+        }
+
+        Path codePath = CodeLocator.locate(config);
+        // Buffered: headers go out only once the whole post rendered, so failures still get a 500
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        try (Writer out = new OutputStreamWriter(buffer, StandardCharsets.UTF_8)) {
+            DiscussionPostFormatter.renderPost(config, codePath, out);
+        }
+        ex.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        ex.sendResponseHeaders(200, buffer.size());
+        try (OutputStream os = ex.getResponseBody()) {
+            buffer.writeTo(os);
+        }
+    }
+
+    /** Only the keys that select what is rendered; values are checked so they cannot name paths. */
+    private static String checkOverride(String key, String value) throws BadRequest {
+        if (key.equals("unit")) {
+            if (!value.matches("\\d+")) throw new BadRequest("unit must be digits");
+        } else if (key.equals("theme")) {
+            checkTheme(value);
+        } else if (key.startsWith("include_")) {
+            if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                throw new BadRequest(key + " must be true or false");
+            }
+        } else {
+            throw new BadRequest("Cannot override " + key + " (allowed: unit, theme, include_*, *FileContents)");
+        }
+        return value;
+    }
+
+    private static void checkTheme(String themeName) throws BadRequest {
+        if (!THEME_NAME.matcher(themeName).matches()) {
+            throw new BadRequest("theme must be a plain theme name");
+        }
+    }
+
+    /** A config file inside the startup config's directory tree (symlinks resolved). */
+    private static Path allowedConfig(Path defaultConfig, String requested) throws BadRequest {
+        Path base = defaultConfig.getParent();
+        Path p = base.resolve(requested).normalize();
+        try {
+            Path real = p.toRealPath();
+            if (real.startsWith(base.toRealPath()) && Files.isRegularFile(real)) return real;
+        } catch (IOException e) {
+            // reported below without echoing what exists outside the tree
+        }
+        throw new BadRequest(403, "config must be a file under " + base);
+    }
+
+    /** Token file readable by the owner only (where the file system supports POSIX permissions). */
+    private static Path writeToken(Path file, String token) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+        Files.writeString(file, token + "\n", StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static void highlight(HttpExchange ex, Config config) throws Exception {
+        if (!ex.getRequestMethod().equals("POST")) {
+            ex.getResponseHeaders().set("Allow", "POST");
+            sendText(ex, 405, "Use POST");
+            return;
+        }
+        String themeName = config.get("theme");
+        List<String> snippets = new ArrayList<>();
+        for (Map.Entry<String,String> p : formParams(ex)) {
+            switch (p.getKey()) {
+                case "theme" -> {
+                    checkTheme(p.getValue());
+                    themeName = p.getValue();
+                }
+                case "snippet" -> snippets.add(p.getValue());
+                default -> throw new BadRequest("Unknown highlight parameter: " + p.getKey());
+            }
+        }
+
+        // One theme lookup and style table for the whole batch
+        Theme theme = ThemeLoader.load(themeName, config.getConfigDir());
+        List<String> blocks = Highlighter.highlightAll(snippets, themeName, theme);
+
+        long size = 2;
+        for (String b : blocks) size += b.length() + 8;
+        StringBuilder json = new StringBuilder((int) Math.min(size + size / 8, Integer.MAX_VALUE - 16));
+        json.append('[');
+        for (int i = 0; i < blocks.size(); i++) {
+            if (i > 0) json.append(',');
+            appendJsonString(json, blocks.get(i));
+        }
+        json.append(']');
+
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(200, body.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static void health(HttpExchange ex, Config config) {
+        StringBuilder sb = new StringBuilder("ok\n");
+        CompilationCache compileCache = CompilationCache.forConfig(config);
+        if (compileCache != null) sb.append(compileCache.stats()).append('\n');
+        SectionCache sectionCache = SectionCache.forConfig(config);
+        if (sectionCache != null) sb.append(sectionCache.stats()).append('\n');
+        sb.append(TidyPool.stats()).append('\n');
+        sendText(ex, 200, sb.toString());
+    }
+
+    /* -------------------------------------------------------
+     * HTTP helpers
+     * ------------------------------------------------------- */
+
+    private static int sendText(HttpExchange ex, int status, String text) {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        try {
+            ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            ex.sendResponseHeaders(status, body.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+        } catch (IOException e) {
+            // client went away; nothing left to report to
+        }
+        return status;
+    }
+
+    private static String readBody(InputStream in) throws IOException, BadRequest {
+        byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+        if (body.length > MAX_BODY_BYTES) {
+            throw new BadRequest("Request body exceeds " + MAX_BODY_BYTES / (1024 * 1024) + " MB");
+        }
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /** Query string pairs followed by those of a form-urlencoded POST body, in request order. */
+    private static List<Map.Entry<String,String>> formParams(HttpExchange ex) throws IOException, BadRequest {
+        List<Map.Entry<String,String>> params = new ArrayList<>();
+        parseForm(ex.getRequestURI().getRawQuery(), params);
+        if (ex.getRequestMethod().equals("POST")) {
+            parseForm(readBody(ex.getRequestBody()), params);
+        }
+        return params;
+    }
+
+    /** application/x-www-form-urlencoded pairs appended to out. */
+    private static void parseForm(String raw, List<Map.Entry<String,String>> out) throws BadRequest {
+        if (raw == null || raw.isEmpty()) return;
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            try {
+                String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+                String value = (eq < 0) ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+                out.add(Map.entry(key, value));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequest("Malformed form parameter: " + pair);
+            }
+        }
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -3,7 +3,10 @@
 package formatter;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -11,6 +14,19 @@ import java.util.*;
 public class DiscussionPostFormatter {
 
     public static void main(String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--batch")) {
+            System.exit(BatchRunner.run(args));
+        }
+        if (Arrays.asList(args).contains("--workspace")) {
+            System.exit(WorkspaceRunner.run(args));
+        }
+        if (Arrays.asList(args).contains("--watch")) {
+            System.exit(WatchRunner.run(args));
+        }
+        if (Arrays.asList(args).contains("--serve")) {
+            System.exit(DaemonServer.run(args));
+        }
+
         Config config = Config.load("config.txt");
 
         String currentUnit = config.get("unit");
@@ -55,7 +71,7 @@ public class DiscussionPostFormatter {
         System.out.println(config.toResolvedString());
 
         String activeThemeName = config.get("theme");
-        Theme activeTheme = ThemeLoader.load(activeThemeName);
+        Theme activeTheme = ThemeLoader.load(activeThemeName, config.getConfigDir());
         if (activeTheme != null) {
             System.out.println("Loaded external theme '" + activeTheme.getName() +
                     "' (" + activeTheme.getStyles().size() + " style tokens)");
@@ -63,63 +79,107 @@ public class DiscussionPostFormatter {
             System.out.println("Using built-in palette for theme '" + activeThemeName + "'.");
         }
 
-        String resolvedOutputPath = config.getResolved("output_file_address");
+        Path outputPath = config.getResolvedPath("output_file_address");
+        String resolvedOutputPath = (outputPath == null) ? null : outputPath.toString();
         System.out.println("Output file (resolved): " + resolvedOutputPath);
 
-        String htmlRaw = generateDiscussionHtml(config, activeThemeName, true, codePath);
-        String htmlFinal = HtmlBeautifier.maybeBeautify(config, htmlRaw);
-        boolean beautified = (htmlFinal != htmlRaw);
-        System.out.println(beautified
-                ? "HTML beautification applied."
-                : "HTML beautification skipped or produced no changes.");
+        BuildManifest manifest = null;
+        if (BuildManifest.enabled(config) && outputPath != null) {
+            manifest = BuildManifest.compute(config, codePath);
+            if (Arrays.asList(args).contains("--force")) {
+                System.out.println("Incremental build: --force given; regenerating.");
+            } else if (manifest.upToDate(outputPath)) {
+                System.out.println("Incremental build: inputs unchanged since the last run; skipped (use --force to regenerate).");
+                printCacheStats(config);
+                return;
+            } else {
+                System.out.println("Incremental build: changed " + String.join(", ", manifest.changedSince(outputPath)));
+            }
+        }
 
+        if (outputPath == null) {
+            System.out.println("Failed to write output HTML: output_file_address is not set");
+            return;
+        }
         try {
-            Utils.writeFile(resolvedOutputPath, htmlFinal);
-            System.out.println("Wrote discussion post HTML.");
+            // Sections stream into a temp file next to the output, renamed into place when complete
+            Config runConfig = config;
+            boolean[] beautified = new boolean[1];
+            boolean replaced = Utils.writeFile(outputPath,
+                    out -> beautified[0] = renderPost(runConfig, codePath, out), Utils.fsyncOutput(config));
+            System.out.println(beautified[0]
+                    ? "HTML beautification applied."
+                    : "HTML beautification skipped or produced no changes.");
+            System.out.println(replaced
+                    ? "Wrote discussion post HTML."
+                    : "Discussion post HTML unchanged; existing file kept.");
+            if (manifest != null) {
+                manifest.record(outputPath);
+            }
         } catch (Exception e) {
             System.out.println("Failed to write output HTML: " + e.getMessage());
         }
+
+        printCacheStats(config);
+        if (InMemoryJavaRunner.isTainted()) {
+            // Abandoned program threads are non-daemon and would keep this JVM alive
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Non-interactive pipeline for one unit: locate code, highlight, compile/run, assemble,
+     * beautify. Returns the final HTML (not yet written). Safe to call concurrently for
+     * different Config instances.
+     */
+    static String renderPost(Config config) {
+        return renderPost(config, CodeLocator.locate(config));
+    }
+
+    static String renderPost(Config config, Path codePath) {
+        String htmlRaw = generateDiscussionHtml(config, config.get("theme"), true, codePath, null);
+        return HtmlBeautifier.maybeBeautify(config, htmlRaw);
     }
 
+    /**
+     * Streaming form of renderPost: writes the final HTML to out (not closed) and returns whether
+     * it was beautified. Without beautification each section is written as soon as it is built;
+     * otherwise the raw document is assembled once and the formatter streams its output to out.
+     */
+    static boolean renderPost(Config config, Path codePath, Writer out) throws IOException {
+        String themeName = config.get("theme");
+        if (!HtmlBeautifier.enabled(config)) {
+            try {
+                generateDiscussionHtml(config, themeName, true, codePath, out);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return false;
+        }
+        String htmlRaw = generateDiscussionHtml(config, themeName, true, codePath, null);
+        return HtmlBeautifier.beautify(config, htmlRaw, out);
+    }
+
+    /**
+     * Builds the document. With a sink, each finished section is handed to it and null is
+     * returned (only one section is buffered at a time); without, the whole document is returned.
+     */
     private static String generateDiscussionHtml(Config config,
                                                  String themeName,
                                                  boolean runExecution,
-                                                 Path codePath) {
+                                                 Path codePath,
+                                                 Writer sink) {
         String unit = safe(config.get("unit"));
 
-        // Derived content (may now contain diagnostic markers)
-        String assignmentText = safe(config.get("assignmentTextFileContents", true));
-        String introText = safe(config.get("introductionTextFileContents", true));
-        String explanation1 = safe(config.get("explanation1TextFileContents", true));
-        String explanation2 = safe(config.get("explanation2TextFileContents", true));
-        String assignmentQuestion = safe(config.get("assignmentTextForDiscussionQuestionFileContents", true));
-        String discussionQuestion = safe(config.get("discussionQuestionFileContents", true));
-        String references = safe(config.get("referencesFileContents", true));
-        String sampleCode = safe(config.get("assignmentSampleCodeFileContents", true));
+        // Derived content (may now contain diagnostic markers): the inputs of enabled sections are
+        // read concurrently here; inputs of disabled sections are never read
+        config.prefetch();
         String codeSource = safe(config.get("codeFileContents", true));
-        String compilerMessagesPrev = safe(config.get("compilerMessagesFileContents", true));
-        String capturedProgramOutputPrev = safe(config.get("programOutputFileContents", true));
-
-        // Inline code processing (skip markers)
-        assignmentText = processIfNotDiagnostic(assignmentText);
-        introText = processIfNotDiagnostic(introText);
-        explanation1 = processIfNotDiagnostic(explanation1);
-        explanation2 = processIfNotDiagnostic(explanation2);
-        assignmentQuestion = processIfNotDiagnostic(assignmentQuestion);
-        discussionQuestion = processIfNotDiagnostic(discussionQuestion);
-        references = processIfNotDiagnostic(references);
-        compilerMessagesPrev = processIfNotDiagnostic(compilerMessagesPrev);
+
+        // Prose sections are rendered (inline code processing + wrapper) only on a section cache miss
+        SectionCache sections = SectionCache.forConfig(config);
 
         boolean codeIsDiagnostic = isDiagnosticMarker(codeSource);
-        String highlightedAssignmentCode;
-        if (codeIsDiagnostic) {
-            highlightedAssignmentCode = "<pre style=\"background:#fff3f3;padding:0.8rem;border:1px solid #d99;\">" +
-                    escape(codeSource) + "</pre>";
-        } else {
-            highlightedAssignmentCode = codeSource.isBlank()
-                    ? "(No assignment code provided.)"
-                    : Highlighter.highlight(codeSource, themeName);
-        }
 
         // Compile / run
         String currentCompilerMessagesReport;
@@ -128,13 +188,18 @@ public class DiscussionPostFormatter {
         if (runExecution && codePath != null && Files.isRegularFile(codePath) && !codeIsDiagnostic) {
             Utils.ExecutionResult er;
             try {
-                er = Utils.runJavaFileDetailed(codePath.toString());
+                er = Utils.runJavaFileDetailed(codePath.toString(), Utils.ExecutionOptions.fromConfig(config));
             } catch (Exception e) {
                 er = new Utils.ExecutionResult(false, "[Invocation error] " + e.getMessage(), "");
             }
+            Utils.RunMetadata md = er.metadata();
+            System.out.println("Execution: compile " + md.compileMillis() + " ms, run " + md.runMillis() + " ms"
+                    + (md.timedOut() ? " (timed out)" : "")
+                    + (md.outputTruncated() ? " (output truncated)" : "")
+                    + (md.subprocessFallback() != null ? " (subprocess: " + md.subprocessFallback() + ")" : ""));
             currentCompilerMessagesReport = buildCompilerReport(er.compilerMessages(), er.compiled());
             if (er.compiled()) {
-                currentProgramOutputReport = buildProgramOutputReport(er.programOutput());
+                currentProgramOutputReport = buildProgramOutputReport(er.programOutput(), er.outputFromCache());
             } else {
                 currentProgramOutputReport = "[No program output (compilation failed)]";
             }
@@ -152,74 +217,97 @@ public class DiscussionPostFormatter {
         StringBuilder html = new StringBuilder(32_000);
         // OPEN: add <main> wrapper
         html.append("<!DOCTYPE html><html lang='en'><head><meta charset='UTF-8'>")
-            .append("<title>Unit ").append(escape(unit)).append(" Discussion Post</title>")
+            .append("<title>Unit ").append(HtmlEscaper.escape(unit)).append(" Discussion Post</title>")
             .append("<meta name='viewport' content='width=device-width,initial-scale=1'>")
             .append("</head><body style=\"font-family:Arial,Helvetica,sans-serif;line-height:1.5;margin:2rem;\">")
             .append("<main style='display:block;width:100%;max-width:960px;margin:0 auto;'>");
 
-        html.append(sectionHeader("Unit " + escape(unit) + " Discussion Post"));
+        html.append(sectionHeader("Unit " + HtmlEscaper.escape(unit) + " Discussion Post"));
+        drain(html, sink);
 
         // Assignment Overview
-        appendConditionalSection(html, config, "include_assignment_text", "Assignment Overview", assignmentText, true);
+        appendCachedSection(html, config, sections, "include_assignment_text", "Assignment Overview", "assignmentTextFileContents", true, false);
+        drain(html, sink);
 
         // Assignment Code Sample
-        appendConditionalSection(html, config, "include_sample_code", "Assignment Code Sample", sampleCode, false, true);
+        appendCachedSection(html, config, sections, "include_sample_code", "Assignment Code Sample", "assignmentSampleCodeFileContents", false, true);
+        drain(html, sink);
 
         // Introduction
-        appendConditionalSection(html, config, "include_introduction", "Introduction", introText, false);
+        appendCachedSection(html, config, sections, "include_introduction", "Introduction", "introductionTextFileContents", false, false);
+        drain(html, sink);
 
         // Primary Explanation
-        appendConditionalSection(html, config, "include_explanation1", "Primary Explanation", explanation1, false);
+        appendCachedSection(html, config, sections, "include_explanation1", "Primary Explanation", "explanation1TextFileContents", false, false);
+        drain(html, sink);
 
         // Additional Explanation
-        appendConditionalSection(html, config, "include_explanation2", "Additional Explanation", explanation2, false);
+        appendCachedSection(html, config, sections, "include_explanation2", "Additional Explanation", "explanation2TextFileContents", false, false);
+        drain(html, sink);
 
         // Discussion Question Context
-        appendConditionalSection(html, config, "include_assignment_text_for_discussion_question", "Discussion Question Context", assignmentQuestion, true);
+        appendCachedSection(html, config, sections, "include_assignment_text_for_discussion_question", "Discussion Question Context", "assignmentTextForDiscussionQuestionFileContents", true, false);
+        drain(html, sink);
 
         // Discussion Question
-        appendConditionalSection(html, config, "include_discussion_question", "Discussion Question", discussionQuestion, false);
+        appendCachedSection(html, config, sections, "include_discussion_question", "Discussion Question", "discussionQuestionFileContents", false, false);
+        drain(html, sink);
 
-        // Code Listing
+        // Code Listing (the only cached section that depends on the theme)
         if (enabled(config, "include_code_listing")) {
-            html.append(sectionHeader("Assigned Code Work"))
-                .append(highlightedAssignmentCode);
+            html.append(sectionHeader("Assigned Code Work"));
+            if (sections == null) {
+                html.append(codeListing(config, themeName, codeSource));
+            } else {
+                String theme = SectionCache.themeFingerprint(themeName, config.getConfigDir());
+                html.append(sections.fragment("include_code_listing", theme, "", codeSource,
+                        () -> codeListing(config, themeName, codeSource)));
+            }
         } else {
-            logSkip(config, "include_code_listing", highlightedAssignmentCode);
+            logSkip(config, "include_code_listing", codeSource);
         }
+        drain(html, sink);
 
         // Compiler Messages (previous + current)
         if (enabled(config, "include_compiler_messages")) {
+            String compilerMessagesPrev =
+                    processIfNotDiagnostic(safe(config.get("compilerMessagesFileContents", true))).html();
             if (!compilerMessagesPrev.isBlank()) {
-                html.append(sectionHeader("Previously Captured Compiler Messages"))
-                    .append(preBlock(compilerMessagesPrev));
+                appendPreBlock(html.append(sectionHeader("Previously Captured Compiler Messages")),
+                        compilerMessagesPrev);
             } else if (isDiagnosticMarker(compilerMessagesPrev)) {
-                html.append(sectionHeader("Previously Captured Compiler Messages"))
-                    .append(preBlock(compilerMessagesPrev));
+                appendPreBlock(html.append(sectionHeader("Previously Captured Compiler Messages")),
+                        compilerMessagesPrev);
             }
-            html.append(sectionHeader("Current Compilation Messages (This Run)"))
-                .append(preBlock(currentCompilerMessagesReport));
+            drain(html, sink);
+            appendPreBlock(html.append(sectionHeader("Current Compilation Messages (This Run)")),
+                    currentCompilerMessagesReport);
         } else {
-            logSkip(config, "include_compiler_messages", compilerMessagesPrev + currentCompilerMessagesReport);
+            logSkip(config, "include_compiler_messages", currentCompilerMessagesReport);
         }
+        drain(html, sink);
 
         // Program Output (previous + current)
         if (enabled(config, "include_program_output")) {
+            String capturedProgramOutputPrev = safe(config.get("programOutputFileContents", true));
             if (!capturedProgramOutputPrev.isBlank()) {
-                html.append(sectionHeader("Previously Captured Program Output"))
-                    .append(preBlock(capturedProgramOutputPrev));
+                appendPreBlock(html.append(sectionHeader("Previously Captured Program Output")),
+                        capturedProgramOutputPrev);
             } else if (isDiagnosticMarker(capturedProgramOutputPrev)) {
-                html.append(sectionHeader("Previously Captured Program Output"))
-                    .append(preBlock(capturedProgramOutputPrev));
+                appendPreBlock(html.append(sectionHeader("Previously Captured Program Output")),
+                        capturedProgramOutputPrev);
             }
-            html.append(sectionHeader("Current Program Output (This Run)"))
-                .append(preBlock(currentProgramOutputReport));
+            drain(html, sink);
+            appendPreBlock(html.append(sectionHeader("Current Program Output (This Run)")),
+                    currentProgramOutputReport);
         } else {
-            logSkip(config, "include_program_output", capturedProgramOutputPrev + currentProgramOutputReport);
+            logSkip(config, "include_program_output", currentProgramOutputReport);
         }
+        drain(html, sink);
 
         // References
-        appendConditionalSection(html, config, "include_references", "References", references, false);
+        appendCachedSection(html, config, sections, "include_references", "References", "referencesFileContents", false, false);
+        drain(html, sink);
 
         // CLOSE: footer + close </main>
         html.append("<footer style='margin-top:3rem;font-size:0.7rem;color:#555;opacity:0.85;text-align:center;'>")
@@ -229,18 +317,85 @@ public class DiscussionPostFormatter {
             .append("</main>")
             .append("</body></html>");
 
-        return html.toString();
+        if (sink == null) return html.toString();
+        drain(html, sink);
+        return null;
+    }
+
+    /** Hands the buffered sections to the sink (no-op when building the whole document). */
+    private static void drain(StringBuilder html, Writer sink) {
+        if (sink == null || html.length() == 0) return;
+        try {
+            sink.append(html);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        html.setLength(0);
     }
 
     /* -------- Section helper with diagnostics -------- */
 
+    /**
+     * Appends a prose section, taking the rendered fragment from the section cache when the
+     * same content was rendered before with the same options. The input (contentKey) is only
+     * read when the section is enabled.
+     */
+    private static void appendCachedSection(StringBuilder html,
+                                            Config config,
+                                            SectionCache sections,
+                                            String toggleKey,
+                                            String heading,
+                                            String contentKey,
+                                            boolean italicize,
+                                            boolean forcePre) {
+        if (!enabled(config, toggleKey)) {
+            logSkip(config, toggleKey, null);
+            return;
+        }
+        String rawContent = safe(config.get(contentKey, true));
+        if (sections == null) {
+            html.append(renderSection(config, toggleKey, heading, rawContent, italicize, forcePre));
+            return;
+        }
+        String toggles = heading + (italicize ? "|italic" : "") + (forcePre ? "|pre" : "");
+        html.append(sections.fragment(toggleKey, "", toggles, rawContent,
+                () -> renderSection(config, toggleKey, heading, rawContent, italicize, forcePre)));
+    }
+
+    private static String renderSection(Config config,
+                                        String toggleKey,
+                                        String heading,
+                                        String rawContent,
+                                        boolean italicize,
+                                        boolean forcePre) {
+        StringBuilder sb = new StringBuilder(rawContent.length() + 256);
+        if (forcePre) {
+            appendConditionalSection(sb, config, toggleKey, heading, rawContent, italicize, true);
+        } else {
+            // Inline code processing (skip markers); also reports block-level HTML
+            appendConditionalSection(sb, config, toggleKey, heading, processIfNotDiagnostic(rawContent), italicize);
+        }
+        return sb.toString();
+    }
+
+    private static String codeListing(Config config, String themeName, String codeSource) {
+        if (isDiagnosticMarker(codeSource)) {
+            return "<pre style=\"background:#fff3f3;padding:0.8rem;border:1px solid #d99;\">" +
+                    HtmlEscaper.escape(codeSource) + "</pre>";
+        }
+        return codeSource.isBlank()
+                ? "(No assignment code provided.)"
+                : Highlighter.highlight(codeSource, themeName, ThemeLoader.load(themeName, config.getConfigDir()));
+    }
+
     private static void appendConditionalSection(StringBuilder html,
                                                  Config config,
                                                  String toggleKey,
                                                  String heading,
-                                                 String content,
+                                                 InlineCodeProcessor.Processed content,
                                                  boolean italicize) {
-        appendConditionalSection(html, config, toggleKey, heading, content, italicize, false);
+        appendConditionalSection(html, config, toggleKey, heading, content.html(), italicize, false,
+                content.containsBlockHtml());
     }
 
     private static void appendConditionalSection(StringBuilder html,
@@ -250,6 +405,17 @@ public class DiscussionPostFormatter {
                                                  String content,
                                                  boolean italicize,
                                                  boolean forcePre) {
+        appendConditionalSection(html, config, toggleKey, heading, content, italicize, forcePre, false);
+    }
+
+    private static void appendConditionalSection(StringBuilder html,
+                                                 Config config,
+                                                 String toggleKey,
+                                                 String heading,
+                                                 String content,
+                                                 boolean italicize,
+                                                 boolean forcePre,
+                                                 boolean blockHtml) {
         if (!enabled(config, toggleKey)) {
             logSkip(config, toggleKey, content);
             return;
@@ -268,9 +434,9 @@ public class DiscussionPostFormatter {
         if (forcePre) {
             html.append(italicize ? italicPreBlock(content) : preBlock(content));
         } else if (italicize) {
-            html.append(italic(content));
+            html.append(italic(content, blockHtml));
         } else {
-            html.append(paragraph(content));
+            html.append(paragraph(content, blockHtml));
         }
     }
 
@@ -280,33 +446,42 @@ public class DiscussionPostFormatter {
 
     private static String diagnosticParagraph(String marker) {
         String style = "margin:0.6rem 0;padding:0.75rem;border:1px solid #e0b4b4;background:#fff5f5;color:#922; font-size:0.9rem;";
-        return "<div style='" + style + "'><strong>File Issue:</strong> " + escape(marker) + "</div>";
+        return "<div style='" + style + "'><strong>File Issue:</strong> " + HtmlEscaper.escape(marker) + "</div>";
     }
 
-    private static String processIfNotDiagnostic(String s) {
-        if (isDiagnosticMarker(s)) return s;
-        return InlineCodeProcessor.process(s);
+    private static InlineCodeProcessor.Processed processIfNotDiagnostic(String s) {
+        if (isDiagnosticMarker(s)) return new InlineCodeProcessor.Processed(s, false);
+        return InlineCodeProcessor.processDetailed(s);
     }
 
     /* -------- Toggle Helpers -------- */
 
     private static boolean enabled(Config config, String key) {
-        String v = config.get(key);
-        if (v == null) return true;
-        return !v.trim().equalsIgnoreCase("false");
+        return config.isEnabled(key);
     }
 
     private static void logSkip(Config config, String key, String content) {
         String dbg = config.get("tidy_debug");
         boolean debug = (dbg != null && dbg.equalsIgnoreCase("true"));
         if (debug) {
-            System.out.println("[Skip] " + key + " = false OR content blank (length=" +
-                    (content == null ? 0 : content.length()) + ")");
+            System.out.println("[Skip] " + key + " = false OR content blank (" +
+                    (content == null ? "input not read" : "length=" + content.length()) + ")");
         }
     }
 
     /* -------- Reporting helpers -------- */
 
+    private static void printCacheStats(Config config) {
+        CompilationCache compileCache = CompilationCache.forConfig(config);
+        if (compileCache != null) {
+            System.out.println(compileCache.stats());
+        }
+        SectionCache sectionCache = SectionCache.forConfig(config);
+        if (sectionCache != null) {
+            System.out.println(sectionCache.stats());
+        }
+    }
+
     private static String buildCompilerReport(String rawMessages, boolean compiled) {
         if (rawMessages == null || rawMessages.isBlank()) {
             return "[No compiler messages]";
@@ -322,14 +497,15 @@ public class DiscussionPostFormatter {
         return sb.toString();
     }
 
-    private static String buildProgramOutputReport(String rawOutput) {
+    private static String buildProgramOutputReport(String rawOutput, boolean fromCache) {
+        String source = fromCache ? " (from output cache; program not re-run)" : "";
         if (rawOutput == null || rawOutput.isBlank()) {
-            return "[No program output]";
+            return "[No program output]" + source;
         }
         String[] lines = rawOutput.split("\\R");
         int nonBlank = 0;
         for (String l : lines) if (!l.isBlank()) nonBlank++;
-        return "[Program output] Lines: " + nonBlank + "\n" + rawOutput.trim();
+        return "[Program output] Lines: " + nonBlank + source + "\n" + rawOutput.trim();
     }
 
     /* -------- Theme selection -------- */
@@ -392,50 +568,40 @@ public class DiscussionPostFormatter {
 
     private static String sectionHeader(String text) {
         return "<h2 style=\"margin-top:2.2rem;margin-bottom:0.6rem;font-size:1.35rem;border-bottom:1px solid #ccc;padding-bottom:0.3rem;\">" +
-                escape(text) + "</h2>";
-    }
-
-    private static boolean containsBlockHtml(String html) {
-        if (html == null) return false;
-        String s = html;
-        // Common block-level tags; case-insensitive
-        return s.matches("(?is).*<\\s*(div|p|h[1-6]|ul|ol|li|pre|section|article|header|footer|nav|table|thead|tbody|tr|td|th|blockquote|figure|figcaption)\\b.*");
+                HtmlEscaper.escape(text) + "</h2>";
     }
 
-    private static String paragraph(String htmlAlreadyProcessed) {
+    private static String paragraph(String htmlAlreadyProcessed, boolean containsBlockHtml) {
         if (htmlAlreadyProcessed == null || htmlAlreadyProcessed.isBlank()) return "";
-        if (containsBlockHtml(htmlAlreadyProcessed)) {
+        if (containsBlockHtml) {
             // Avoid invalid nesting: don't put blocks inside <p>
             return "<div style='margin:0.9rem 0;'>" + htmlAlreadyProcessed + "</div>";
         }
         return "<p style='margin:0.9rem 0;'>" + htmlAlreadyProcessed + "</p>";
     }
 
-    private static String italic(String htmlAlreadyProcessed) {
+    private static String italic(String htmlAlreadyProcessed, boolean containsBlockHtml) {
         if (htmlAlreadyProcessed == null || htmlAlreadyProcessed.isBlank()) return "";
-        if (containsBlockHtml(htmlAlreadyProcessed)) {
+        if (containsBlockHtml) {
             return "<div style='margin:0.9rem 0;font-style:italic;'>" + htmlAlreadyProcessed + "</div>";
         }
         return "<p style='margin:0.9rem 0;font-style:italic;'>" + htmlAlreadyProcessed + "</p>";
     }
 
     private static String preBlock(String text) {
-        return "<pre style=\"background:#f5f5f5;padding:0.8rem;border:1px solid #ccc;overflow:auto;font-family:'Courier New',monospace;font-size:0.85rem;line-height:1.35;white-space:pre-wrap;\">"
-                + escape(text) + "</pre>";
+        return appendPreBlock(new StringBuilder(text.length() + 256), text).toString();
     }
 
-    private static String italicPreBlock(String text) {
-        return "<pre style=\"background:#f5f5f5;padding:0.8rem;border:1px solid #ccc;overflow:auto;font-style:italic;font-family:'Courier New',monospace;font-size:0.85rem;line-height:1.35;white-space:pre-wrap;\">"
-                + escape(text) + "</pre>";
+    /** Escapes text straight into sb (no intermediate copy of large program output). */
+    private static StringBuilder appendPreBlock(StringBuilder sb, String text) {
+        sb.append("<pre style=\"background:#f5f5f5;padding:0.8rem;border:1px solid #ccc;overflow:auto;font-family:'Courier New',monospace;font-size:0.85rem;line-height:1.35;white-space:pre-wrap;\">");
+        HtmlEscaper.appendEscaped(sb, text);
+        return sb.append("</pre>");
     }
 
-    private static String escape(String s) {
-        if (s == null) return "";
-        return s.replace("&","&amp;")
-                .replace("<","&lt;")
-                .replace(">","&gt;")
-                .replace("\"","&quot;")
-                .replace("'","&#39;");
+    private static String italicPreBlock(String text) {
+        return "<pre style=\"background:#f5f5f5;padding:0.8rem;border:1px solid #ccc;overflow:auto;font-style:italic;font-family:'Courier New',monospace;font-size:0.85rem;line-height:1.35;white-space:pre-wrap;\">"
+                + HtmlEscaper.escape(text) + "</pre>";
     }
 
     private static String safe(String s) {
@@ -0,0 +1,172 @@
+// Current filename: DiskLruCache.java
+
+package formatter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Directory store shared by CompilationCache, SectionCache and OutputCache.
+ *
+ * One instance per cache directory, so counters (and any in-memory level a subclass keeps)
+ * are process-wide; the size bound is the one given to the most recent open() for the
+ * directory. Entries are <dir>/<key><extension>, written to a temp file and moved into place.
+ * The file mtime is the LRU clock (touched on every hit).
+ *
+ * The directory's byte total is counted on the first store and then kept up to date by this
+ * process's stores. Only when it passes the bound is the directory listed again: the total is
+ * recounted (other processes may share the directory) and the least recently used entries are
+ * deleted until it is back under 90% of the bound, so a full cache does not rescan the
+ * directory on every store.
+ */
+public abstract class DiskLruCache {
+
+    private static final Map<Path,DiskLruCache> INSTANCES = new ConcurrentHashMap<>();
+    private static final double LOW_WATER = 0.9;
+
+    protected final Path dir;
+    private final String extension;
+    private final String label;
+    private volatile long maxBytes;
+    private long totalBytes = -1; // guarded by this; -1 until counted
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public record Stats(String label, long hits, long misses, long evictions) {
+        @Override public String toString() {
+            return label + ": " + hits + " hit" + (hits == 1 ? "" : "s")
+                    + ", " + misses + " miss" + (misses == 1 ? "" : "es")
+                    + ", " + evictions + " evicted";
+        }
+    }
+
+    /** Writes one entry's bytes (the stream is closed by the caller). */
+    @FunctionalInterface
+    protected interface EntryWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    protected DiskLruCache(Path dir, String extension, String label) {
+        this.dir = dir;
+        this.extension = extension;
+        this.label = label;
+    }
+
+    /** The instance for dir (created by factory from the normalized path), bounded by maxBytes. */
+    protected static <C extends DiskLruCache> C open(Path dir, long maxBytes, Class<C> type, Function<Path,C> factory) {
+        Path key = dir.toAbsolutePath().normalize();
+        DiskLruCache cache = INSTANCES.computeIfAbsent(key, factory);
+        if (!type.isInstance(cache)) {
+            throw new IllegalStateException(key + " is already used by " + cache.label);
+        }
+        cache.maxBytes = maxBytes;
+        return type.cast(cache);
+    }
+
+    public Stats stats() {
+        return new Stats(label, hits.get(), misses.get(), evictions.get());
+    }
+
+    protected void hit() {
+        hits.incrementAndGet();
+    }
+
+    protected void miss() {
+        misses.incrementAndGet();
+    }
+
+    protected Path entry(String key) {
+        return dir.resolve(key + extension);
+    }
+
+    /** Marks the entry as just used; a vanished entry is simply not touched. */
+    protected void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {}
+    }
+
+    /** Atomically replaces the entry for key with what writer produces, then enforces the bound. */
+    protected void store(String key, EntryWriter writer) throws IOException {
+        Files.createDirectories(dir);
+        Path target = entry(key);
+        Path tmp = Files.createTempFile(dir, "entry", ".tmp");
+        long added;
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                writer.write(out);
+            }
+            added = Files.size(tmp);
+            long replaced = 0;
+            try {
+                replaced = Files.size(target);
+            } catch (IOException ignored) {
+                // new entry
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            added -= replaced;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        stored(added);
+    }
+
+    /* -------------------------------------------------------
+     * LRU eviction (file mtime = last use)
+     * ------------------------------------------------------- */
+
+    private record Item(Path path, long size, long lastUsed) {}
+
+    private synchronized void stored(long delta) throws IOException {
+        if (totalBytes < 0) {
+            totalBytes = list(null);
+        } else {
+            totalBytes += delta;
+        }
+        long limit = maxBytes;
+        if (totalBytes <= limit) return;
+
+        List<Item> items = new ArrayList<>();
+        long total = list(items);
+        long target = (long) (limit * LOW_WATER);
+        if (total > limit) {
+            items.sort(Comparator.comparingLong(Item::lastUsed));
+            for (Item it : items) {
+                if (total <= target) break;
+                try {
+                    if (Files.deleteIfExists(it.path())) {
+                        evictions.incrementAndGet();
+                        total -= it.size();
+                    }
+                } catch (IOException e) {
+                    // still on disk (e.g. open elsewhere on Windows): it keeps counting, try the next one
+                }
+            }
+        }
+        totalBytes = total;
+    }
+
+    /** Total size of the entries on disk; each one is added to items unless items is null. */
+    private long list(List<Item> items) throws IOException {
+        long total = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + extension)) {
+            for (Path p : ds) {
+                try {
+                    long size = Files.size(p);
+                    if (items != null) items.add(new Item(p, size, Files.getLastModifiedTime(p).toMillis()));
+                    total += size;
+                } catch (IOException ignored) {
+                    // entry vanished (another process evicted it)
+                }
+            }
+        }
+        return total;
+    }
+}
@@ -2,7 +2,11 @@
 
 package formatter;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 /**
  * Java-like syntax highlighter.
@@ -86,126 +90,287 @@ public final class Highlighter {
      *  - Fallback to internal palette
      */
     public static String highlight(String code, String themeName) {
+        return highlight(code, themeName, ThemeLoader.load(themeName));
+    }
+
+    /**
+     * Highlight with an already-resolved external theme (may be null); themeName still
+     * selects the internal fallback palette.
+     */
+    public static String highlight(String code, String themeName, Theme externalTheme) {
         if (code == null || code.isBlank()) return "";
-        Theme externalTheme = ThemeLoader.load(themeName); // may be null
+        StringBuilder out = new StringBuilder(code.length() + code.length() / 2 + 256);
+        try {
+            highlight(code, themeName, externalTheme, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder never throws
+        }
+        return out.toString();
+    }
+
+    /**
+     * Streaming form: writes the complete "<pre>...</pre>" block straight to out.
+     * The palette fallback is the built-in palette named like the theme (else "default").
+     */
+    public static void highlight(CharSequence code, Theme theme, Appendable out) throws IOException {
+        highlight(code, theme == null ? null : theme.getName(), theme, out);
+    }
+
+    public static void highlight(CharSequence code, String themeName, Theme externalTheme, Appendable out)
+            throws IOException {
+        if (code == null || isBlank(code)) return;
+        Palette palette = PALETTES.getOrDefault(themeName, PALETTES.get("default"));
+        doHighlight(code, styleTable(externalTheme, palette), out);
+    }
+
+    /* -------------------------------------------------------
+     * Batch API (many small snippets, one theme)
+     * ------------------------------------------------------- */
+
+    /** Below this many characters in total a batch is highlighted on the calling thread. */
+    private static final int PARALLEL_MIN_CHARS = 32 * 1024;
+
+    /**
+     * Highlights every snippet with one theme and returns the "<pre>" blocks in input order
+     * (blank or null snippets give ""). The theme and its style table are resolved once for
+     * the whole batch; large batches are spread over the common ForkJoin pool.
+     */
+    public static List<String> highlightAll(List<String> snippets, String themeName, Theme externalTheme) {
         Palette palette = PALETTES.getOrDefault(themeName, PALETTES.get("default"));
-        return doHighlight(code, externalTheme, palette);
+        StyleTable styles = styleTable(externalTheme, palette);
+        String[] in = snippets.toArray(new String[0]);
+        String[] out = new String[in.length];
+
+        long totalChars = 0;
+        for (String s : in) totalChars += (s == null) ? 0 : s.length();
+        if (in.length < 2 || totalChars < PARALLEL_MIN_CHARS) {
+            for (int i = 0; i < in.length; i++) out[i] = highlightOne(in[i], styles);
+        } else {
+            IntStream.range(0, in.length).parallel().forEach(i -> out[i] = highlightOne(in[i], styles));
+        }
+        return Arrays.asList(out);
+    }
+
+    public static List<String> highlightAll(List<String> snippets, String themeName) {
+        return highlightAll(snippets, themeName, ThemeLoader.load(themeName));
+    }
+
+    private static String highlightOne(String code, StyleTable styles) {
+        if (code == null || code.isBlank()) return "";
+        StringBuilder sb = new StringBuilder(code.length() + code.length() / 2 + 256);
+        try {
+            doHighlight(code, styles, sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder never throws
+        }
+        return sb.toString();
     }
 
     /* -------------------------------------------------------
-     * Core highlighting logic
+     * Core highlighting logic (offset based: tokens are [start, i) ranges of code)
      * ------------------------------------------------------- */
-    private static String doHighlight(String code, Theme ext, Palette pal) {
-        StringBuilder out = new StringBuilder(code.length() + 256);
-        char[] chars = code.toCharArray();
+    private static void doHighlight(CharSequence code, StyleTable styles, Appendable out) throws IOException {
+        final int n = code.length();
         int i = 0;
+        out.append(styles.preOpen);
 
-        while (i < chars.length) {
-            char c = chars[i];
+        while (i < n) {
+            char c = code.charAt(i);
 
             // Line comment //
-            if (c == '/' && i + 1 < chars.length && chars[i + 1] == '/') {
+            if (c == '/' && i + 1 < n && code.charAt(i + 1) == '/') {
                 int start = i; i += 2;
-                while (i < chars.length && chars[i] != '\n') i++;
-                appendStyled(out, code.substring(start, i), "comment", ext, pal);
+                while (i < n && code.charAt(i) != '\n') i++;
+                appendStyled(out, code, start, i, TokenKind.COMMENT, styles);
                 continue;
             }
 
             // Block comment /* ... */
-            if (c == '/' && i + 1 < chars.length && chars[i + 1] == '*') {
+            if (c == '/' && i + 1 < n && code.charAt(i + 1) == '*') {
                 int start = i; i += 2;
-                while (i + 1 < chars.length && !(chars[i] == '*' && chars[i + 1] == '/')) i++;
-                if (i + 1 < chars.length) i += 2; // consume */
-                appendStyled(out, code.substring(start, i), "comment", ext, pal);
+                while (i + 1 < n && !(code.charAt(i) == '*' && code.charAt(i + 1) == '/')) i++;
+                if (i + 1 < n) i += 2; // consume */
+                appendStyled(out, code, start, i, TokenKind.COMMENT, styles);
                 continue;
             }
 
             // String literal
             if (c == '"') {
                 int start = i++; boolean esc = false;
-                while (i < chars.length) {
-                    char d = chars[i++];
+                while (i < n) {
+                    char d = code.charAt(i++);
                     if (d == '\\' && !esc) { esc = true; continue; }
                     if (d == '"' && !esc) break;
                     esc = false;
                 }
-                appendStyled(out, code.substring(start, i), "string", ext, pal);
+                appendStyled(out, code, start, i, TokenKind.STRING, styles);
                 continue;
             }
 
             // Char literal
             if (c == '\'') {
                 int start = i++; boolean esc = false;
-                while (i < chars.length) {
-                    char d = chars[i++];
+                while (i < n) {
+                    char d = code.charAt(i++);
                     if (d == '\\' && !esc) { esc = true; continue; }
                     if (d == '\'' && !esc) break;
                     esc = false;
                 }
-                appendStyled(out, code.substring(start, i), "char", ext, pal);
+                appendStyled(out, code, start, i, TokenKind.CHAR, styles);
                 continue;
             }
 
             // Annotation (@Something)
             if (c == '@') {
                 int start = i++;
-                while (i < chars.length && Character.isJavaIdentifierPart(chars[i])) i++;
-                appendStyled(out, code.substring(start, i), "annotation", ext, pal);
+                while (i < n && Character.isJavaIdentifierPart(code.charAt(i))) i++;
+                appendStyled(out, code, start, i, TokenKind.ANNOTATION, styles);
                 continue;
             }
 
             // Number
             if (Character.isDigit(c)) {
                 int start = i++;
-                while (i < chars.length &&
-                        (Character.isDigit(chars[i]) ||
-                         chars[i]=='.' || chars[i]=='_' ||
-                         chars[i]=='x' || chars[i]=='X' ||
-                         chars[i]=='b' || chars[i]=='B')) {
-                    i++;
-                }
-                appendStyled(out, code.substring(start, i), "number", ext, pal);
+                while (i < n && isNumberPart(code.charAt(i))) i++;
+                appendStyled(out, code, start, i, TokenKind.NUMBER, styles);
                 continue;
             }
 
             // Identifier / keyword / type
             if (Character.isJavaIdentifierStart(c)) {
                 int start = i++;
-                while (i < chars.length && Character.isJavaIdentifierPart(chars[i])) i++;
-                String token = code.substring(start, i);
-                if (KEYWORDS.contains(token)) {
-                    appendStyled(out, token, "keyword", ext, pal);
-                } else if (TYPES.contains(token)) {
-                    appendStyled(out, token, "type", ext, pal);
-                } else {
-                    appendStyled(out, token, "ident", ext, pal);
-                }
+                while (i < n && Character.isJavaIdentifierPart(code.charAt(i))) i++;
+                appendStyled(out, code, start, i, classifyWord(code, start, i), styles);
                 continue;
             }
 
             // Fallback: single character (punctuation / whitespace)
-            escapeAppend(out, String.valueOf(c));
+            HtmlEscaper.appendEscaped(out, c);
             i++;
         }
 
-        String bg = pickBackground(ext, pal);
-        return "<pre style=\"background:"+ bg +";padding:0.8rem;border:1px solid #ccc;overflow:auto;"
-                + "font-family:'Courier New',monospace;font-size:0.85rem;line-height:1.35;\">"
-                + out + "</pre>";
+        out.append("</pre>");
+    }
+
+    private static boolean isNumberPart(char ch) {
+        return Character.isDigit(ch) ||
+               ch=='.' || ch=='_' ||
+               ch=='x' || ch=='X' ||
+               ch=='b' || ch=='B';
+    }
+
+    private static boolean isBlank(CharSequence cs) {
+        for (int i = 0; i < cs.length(); i++) {
+            if (!Character.isWhitespace(cs.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    /* -------------------------------------------------------
+     * Keyword / type lookup without materializing the word
+     * ------------------------------------------------------- */
+
+    /** WORDS[c] = keywords and types starting with ASCII char c, paired with their kind. */
+    private static final String[][] WORDS = new String[128][];
+    private static final TokenKind[][] WORD_KINDS = new TokenKind[128][];
+    static {
+        Map<Character,List<String>> words = new TreeMap<>();
+        Map<Character,List<TokenKind>> kinds = new TreeMap<>();
+        for (String kw : KEYWORDS) {
+            words.computeIfAbsent(kw.charAt(0), k -> new ArrayList<>()).add(kw);
+            kinds.computeIfAbsent(kw.charAt(0), k -> new ArrayList<>()).add(TokenKind.KEYWORD);
+        }
+        for (String t : TYPES) {
+            if (KEYWORDS.contains(t)) continue; // keyword wins, as before
+            words.computeIfAbsent(t.charAt(0), k -> new ArrayList<>()).add(t);
+            kinds.computeIfAbsent(t.charAt(0), k -> new ArrayList<>()).add(TokenKind.TYPE);
+        }
+        for (Character c : words.keySet()) {
+            WORDS[c] = words.get(c).toArray(new String[0]);
+            WORD_KINDS[c] = kinds.get(c).toArray(new TokenKind[0]);
+        }
+    }
+
+    private static TokenKind classifyWord(CharSequence code, int start, int end) {
+        char first = code.charAt(start);
+        if (first >= 128 || WORDS[first] == null) return TokenKind.IDENT;
+        String[] candidates = WORDS[first];
+        int len = end - start;
+        outer:
+        for (int w = 0; w < candidates.length; w++) {
+            String cand = candidates[w];
+            if (cand.length() != len) continue;
+            for (int k = 1; k < len; k++) {
+                if (cand.charAt(k) != code.charAt(start + k)) continue outer;
+            }
+            return WORD_KINDS[first][w];
+        }
+        return TokenKind.IDENT;
+    }
+
+    /* -------------------------------------------------------
+     * Compiled style tables
+     * ------------------------------------------------------- */
+
+    /** Token kinds that receive a span; key = style name in theme JSON. */
+    private enum TokenKind {
+        KEYWORD("keyword"), TYPE("type"), STRING("string"), CHAR("char"), COMMENT("comment"),
+        NUMBER("number"), ANNOTATION("annotation"), IDENT("ident");
+
+        final String key;
+
+        TokenKind(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Pre-rendered output for one (Theme, Palette) pair: the complete "<span style=...>" opener
+     * for every TokenKind (indexed by ordinal) plus the "<pre ...>" opener. Built once; the
+     * highlighting loop then only does array lookups and appends.
+     */
+    private static final class StyleTable {
+        final String[] spanOpen = new String[TokenKind.values().length];
+        final String preOpen;
+
+        StyleTable(Theme ext, Palette pal) {
+            for (TokenKind k : TokenKind.values()) {
+                spanOpen[k.ordinal()] = "<span style=\"" + resolveStyle(k.key, ext, pal) + "\">";
+            }
+            preOpen = "<pre style=\"background:" + pickBackground(ext, pal) + ";padding:0.8rem;border:1px solid #ccc;overflow:auto;"
+                    + "font-family:'Courier New',monospace;font-size:0.85rem;line-height:1.35;\">";
+        }
+    }
+
+    /** Theme has identity equality, and the ThemeLoader registry hands out one instance per file version. */
+    private record StyleKey(Theme theme, Palette palette) {}
+
+    private static final int MAX_STYLE_TABLES = 64;
+    private static final Map<StyleKey,StyleTable> STYLE_TABLES = new ConcurrentHashMap<>();
+
+    private static StyleTable styleTable(Theme ext, Palette pal) {
+        StyleKey key = new StyleKey(ext, pal);
+        StyleTable table = STYLE_TABLES.get(key);
+        if (table == null) {
+            // Superseded theme versions would otherwise accumulate in long-running processes.
+            if (STYLE_TABLES.size() >= MAX_STYLE_TABLES) STYLE_TABLES.clear();
+            table = STYLE_TABLES.computeIfAbsent(key, k -> new StyleTable(k.theme(), k.palette()));
+        }
+        return table;
     }
 
     /* -------------------------------------------------------
      * Styling helpers
      * ------------------------------------------------------- */
 
-    private static void appendStyled(StringBuilder out,
-                                     String raw,
-                                     String kind,
-                                     Theme ext,
-                                     Palette pal) {
-        String style = resolveStyle(kind, ext, pal);
-        out.append("<span style=\"").append(style).append("\">");
-        escapeAppend(out, raw);
+    private static void appendStyled(Appendable out,
+                                     CharSequence code,
+                                     int start,
+                                     int end,
+                                     TokenKind kind,
+                                     StyleTable styles) throws IOException {
+        out.append(styles.spanOpen[kind.ordinal()]);
+        HtmlEscaper.appendEscaped(out, code, start, end);
         out.append("</span>");
     }
 
@@ -270,18 +435,4 @@ public final class Highlighter {
         if (pal != null) return pal.bg;
         return "#ffffff";
     }
-
-    private static void escapeAppend(StringBuilder out, String s) {
-        for (int i=0;i<s.length();i++) {
-            char c = s.charAt(i);
-            switch (c) {
-                case '&' -> out.append("&amp;");
-                case '<' -> out.append("&lt;");
-                case '>' -> out.append("&gt;");
-                case '"' -> out.append("&quot;");
-                case '\'' -> out.append("&#39;");
-                default -> out.append(c);
-            }
-        }
-    }
-}
\ No newline at end of file
+}
@@ -59,9 +59,9 @@ public class HtmlAssembler {
             case ASSIGNMENT_TEXT -> {
                 sb.append("<section style=\"").append(SECTION_STYLE).append("\">");
                 sb.append("<h2 style=\"").append(H2_STYLE).append("\">Assignment</h2>");
-                sb.append("<div style=\"").append(DIV_TEXT_STYLE).append("\">")
-                  .append(escapeHtml(block.getContent()))
-                  .append("</div>");
+                sb.append("<div style=\"").append(DIV_TEXT_STYLE).append("\">");
+                HtmlEscaper.appendEscaped(sb, block.getContent());
+                sb.append("</div>");
                 sb.append("</section>\n");
             }
             case HIGHLIGHTED_CODE -> {
@@ -70,18 +70,18 @@ public class HtmlAssembler {
                 if (containsPre(block.getContent())) {
                     sb.append(block.getContent());
                 } else {
-                    sb.append("<pre style=\"").append(PRE_CODEBLOCK_FALLBACK_STYLE).append("\">")
-                      .append(escapeHtml(block.getContent()))
-                      .append("</pre>");
+                    sb.append("<pre style=\"").append(PRE_CODEBLOCK_FALLBACK_STYLE).append("\">");
+                    HtmlEscaper.appendEscaped(sb, block.getContent());
+                    sb.append("</pre>");
                 }
                 sb.append("</section>\n");
             }
             case PROGRAM_OUTPUT -> {
                 sb.append("<section style=\"").append(SECTION_STYLE).append("\">")
                   .append("<h2 style=\"").append(H2_STYLE).append("\">Output</h2>")
-                  .append("<pre style=\"").append(PRE_OUTPUT_STYLE).append("\">")
-                  .append(escapeHtml(block.getContent()))
-                  .append("</pre>")
+                  .append("<pre style=\"").append(PRE_OUTPUT_STYLE).append("\">");
+                HtmlEscaper.appendEscaped(sb, block.getContent());
+                sb.append("</pre>")
                   .append("</section>\n");
             }
             case EXPLANATION_PLACEHOLDER -> {
@@ -94,15 +94,15 @@ public class HtmlAssembler {
             }
             case SECTION_HEADER -> {
                 sb.append("<section style=\"").append(SECTION_STYLE).append("\">")
-                  .append("<h2 style=\"").append(H2_STYLE).append("\">")
-                  .append(escapeHtml(block.getContent()))
-                  .append("</h2>")
+                  .append("<h2 style=\"").append(H2_STYLE).append("\">");
+                HtmlEscaper.appendEscaped(sb, block.getContent());
+                sb.append("</h2>")
                   .append("</section>\n");
             }
             case INLINE_CODE -> {
-                sb.append("<code style=\"").append(INLINE_CODE_STYLE).append("\">")
-                  .append(escapeHtml(block.getContent()))
-                  .append("</code>\n");
+                sb.append("<code style=\"").append(INLINE_CODE_STYLE).append("\">");
+                HtmlEscaper.appendEscaped(sb, block.getContent());
+                sb.append("</code>\n");
             }
             default -> sb.append("<!-- Unknown block type: ").append(block.getType()).append(" -->\n");
         }
@@ -112,13 +112,4 @@ public class HtmlAssembler {
         if (html == null) return false;
         return html.toLowerCase().contains("<pre");
     }
-
-    private static String escapeHtml(String s) {
-        if (s == null) return "";
-        return s.replace("&","&amp;")
-                .replace("<","&lt;")
-                .replace(">","&gt;")
-                .replace("\"","&quot;")
-                .replace("'","&#39;");
-    }
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 package formatter;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Locale;
 
 /**
@@ -9,24 +9,76 @@ import java.util.Locale;
  *
  * Strategy:
  *  1. If config says tidy_html = false (case-insensitive), return original.
- *  2. Try external HTML Tidy (tidy or tidy.exe) if available on PATH.
- *  3. If external tidy fails/not found, fallback to a naive internal formatter.
+ *  2. tidy_engine selects the formatter:
+ *       builtin  (default) pure-Java HtmlTidy, no child process
+ *       external HTML Tidy (tidy or tidy.exe) from PATH, run through TidyPool
+ *                (path resolved once, bounded concurrency, per-call timeout, memoized)
+ *       auto     external tidy when found on PATH, otherwise builtin
+ *  3. If the selected engine fails, fallback to a naive internal formatter.
  *  4. If all formatting attempts fail, return original.
  *
+ * beautify(config, html, Writer) is the streaming form used when writing the post: the
+ * selected formatter writes straight into the output (through the closer-collapsing filter)
+ * instead of returning another full copy of the document. The built-in and naive formatters
+ * serialize documents up to BUFFERED_MAX_CHARS into a buffer first, so one that fails part-way
+ * still falls back cleanly; larger documents stream, and a failure after output has started is
+ * thrown as an IOException so the caller discards the partial file.
+ *
  * Optional debug:
- *  - If config tidy_debug = true, include Tidy stderr warnings as an HTML comment
+ *  - If config tidy_debug = true, include Tidy warnings as an HTML comment
  *    (when tidy succeeds) or print them to stdout (when tidy fails).
  */
 public final class HtmlBeautifier {
 
     private HtmlBeautifier() {}
 
+    enum TidyEngine {
+        BUILTIN, EXTERNAL, AUTO;
+
+        static TidyEngine parse(String value) {
+            if (value == null || value.isBlank()) return BUILTIN;
+            return switch (value.trim().toLowerCase(Locale.ROOT)) {
+                case "external" -> EXTERNAL;
+                case "auto" -> AUTO;
+                default -> BUILTIN;
+            };
+        }
+    }
+
+    private static final int BUFFERED_MAX_CHARS = 4 * 1024 * 1024;
+
+    /** A formatter writing one whole document. */
+    @FunctionalInterface
+    private interface DocumentWriter {
+        void writeTo(Writer w) throws IOException;
+    }
+
     public static String maybeBeautify(Config config, String rawHtml) {
-        if (rawHtml == null || rawHtml.isBlank()) return rawHtml;
+        if (rawHtml == null || rawHtml.isBlank() || !enabled(config)) return rawHtml;
+        StringWriter sw = new StringWriter(rawHtml.length() + rawHtml.length() / 4 + 256);
+        try {
+            return beautify(config, rawHtml, sw) ? sw.toString() : rawHtml;
+        } catch (IOException e) {
+            return rawHtml; // StringWriter does not throw
+        }
+    }
 
+    /** False when tidy_html = false (case-insensitive). */
+    public static boolean enabled(Config config) {
         String flag = config.get("tidy_html");
-        if (flag != null && flag.trim().equalsIgnoreCase("false")) {
-            return rawHtml;
+        return flag == null || !flag.trim().equalsIgnoreCase("false");
+    }
+
+    /**
+     * Streaming form of maybeBeautify: writes the formatted document to out, or rawHtml unchanged
+     * when formatting is off or every engine failed. Returns true when a formatter was applied.
+     * Throws I/O errors of out itself, and an IOException when a formatter streaming a large
+     * document fails after part of it was written.
+     */
+    public static boolean beautify(Config config, String rawHtml, Writer out) throws IOException {
+        if (rawHtml == null || rawHtml.isBlank() || !enabled(config)) {
+            if (rawHtml != null) out.write(rawHtml);
+            return false;
         }
 
         boolean debug = false;
@@ -35,128 +87,115 @@ public final class HtmlBeautifier {
             debug = true;
         }
 
-        // Try external Tidy first
-        try {
-            String tidyPath = findTidyExecutable();
-            if (tidyPath != null) {
+        TidyEngine engine = TidyEngine.parse(config.get("tidy_engine"));
+        String tidyPath = null;
+        if (engine != TidyEngine.BUILTIN) {
+            tidyPath = TidyPool.executable();
+            if (tidyPath == null && debug) {
+                System.out.println("[HtmlBeautifier] No tidy executable found on PATH.");
+            }
+            if (tidyPath == null && engine == TidyEngine.AUTO) {
+                engine = TidyEngine.BUILTIN;
+            }
+        }
+
+        if (engine == TidyEngine.BUILTIN) {
+            HtmlTidy.Document doc = null;
+            try {
+                doc = HtmlTidy.parse(rawHtml);
+            } catch (RuntimeException e) {
                 if (debug) {
-                    System.out.println("[HtmlBeautifier] Using external tidy: " + tidyPath);
+                    System.out.println("[HtmlBeautifier] Built-in tidy failed: " + e);
                 }
-                TidyResult tr = runExternalTidy(tidyPath, rawHtml);
-                if (tr != null && tr.output() != null && !tr.output().isBlank()) {
-                    String output = tr.output();
-                    // Collapse newlines before selected closers, pre-aware
-                    output = collapseNewlinesBeforeClosersPreAware(output);
-                    if (debug && tr.stderr() != null && !tr.stderr().isBlank()) {
-                        return buildDebugComment(tr.stderr()) + output;
+            }
+            if (doc != null) {
+                HtmlTidy.Document parsed = doc;
+                boolean withComment = debug && !doc.diagnostics().isEmpty();
+                boolean written = writeGuarded("Built-in tidy", rawHtml.length(), w -> {
+                    if (withComment) {
+                        w.write(buildDebugComment(parsed.messages()));
                     }
-                    return output;
-                } else if (debug && tr != null && tr.stderr() != null && !tr.stderr().isBlank()) {
-                    System.out.println("[HtmlBeautifier] External tidy failed output; stderr:\n" + tr.stderr());
+                    Writer collapsing = new CloserCollapsingWriter(w);
+                    parsed.writeTo(collapsing);
+                    collapsing.flush();
+                }, out, debug);
+                if (written) {
+                    if (debug) {
+                        System.out.println("[HtmlBeautifier] Used built-in tidy (" + doc.diagnostics().size() + " warning(s)).");
+                    }
+                    return true;
                 }
-            } else if (debug) {
-                System.out.println("[HtmlBeautifier] No tidy executable found on PATH.");
             }
-        } catch (Exception e) {
-            if (debug) {
-                System.out.println("[HtmlBeautifier] External tidy attempt threw: " + e.getMessage());
+        } else if (tidyPath != null) {
+            // External Tidy
+            TidyPool.Result tr = null;
+            try {
+                if (debug) {
+                    System.out.println("[HtmlBeautifier] Using external tidy: " + tidyPath);
+                }
+                tr = TidyPool.tidy(config, rawHtml);
+            } catch (Exception e) {
+                if (debug) {
+                    System.out.println("[HtmlBeautifier] External tidy attempt threw: " + e.getMessage());
+                }
+            }
+            if (tr != null && tr.output() != null && !tr.output().isBlank()) {
+                if (debug && tr.stderr() != null && !tr.stderr().isBlank()) {
+                    out.write(buildDebugComment(tr.stderr()));
+                }
+                // Collapse newlines before selected closers, pre-aware
+                Writer collapsing = new CloserCollapsingWriter(out);
+                collapsing.write(tr.output());
+                collapsing.flush();
+                return true;
+            } else if (debug && tr != null && tr.stderr() != null && !tr.stderr().isBlank()) {
+                System.out.println("[HtmlBeautifier] External tidy failed output; stderr:\n" + tr.stderr());
             }
         }
 
         // Fallback: pre-aware internal formatting
-        try {
-            String pretty = naivePrettyPrint(rawHtml);
-            // Collapse newlines before selected closers, pre-aware
-            pretty = collapseNewlinesBeforeClosersPreAware(pretty);
+        // Indents and collapses newlines before selected closers in one pre-aware pass
+        if (writeGuarded("Naive formatter", rawHtml.length(), w -> prettyPrint(rawHtml, w), out, debug)) {
             if (debug) {
                 System.out.println("[HtmlBeautifier] Used naive formatter fallback (pre-aware).");
             }
-            return pretty;
-        } catch (Exception e) {
-            if (debug) {
-                System.out.println("[HtmlBeautifier] Naive formatter failed: " + e.getMessage());
-            }
-            return rawHtml; // ultimate fallback
-        }
-    }
-
-    /* -------------------------------------------------------
-       External Tidy support
-       ------------------------------------------------------- */
-
-    private static String findTidyExecutable() {
-        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
-        String[] candidates = os.contains("win")
-                ? new String[]{"tidy.exe", "tidy"}
-                : new String[]{"tidy"};
-        for (String c : candidates) {
-            if (executableOnPath(c)) {
-                return c;
-            }
-        }
-        return null;
-    }
-
-    private static boolean executableOnPath(String exe) {
-        String path = System.getenv("PATH");
-        if (path == null) return false;
-        String[] parts = path.split(File.pathSeparator);
-        for (String dir : parts) {
-            File f = new File(dir, exe);
-            if (f.isFile() && f.canExecute()) {
-                return true;
-            }
+            return true;
         }
+        out.write(rawHtml);
         return false;
     }
 
-    private record TidyResult(String output, String stderr, int exitCode) {}
-
-    private static TidyResult runExternalTidy(String tidyCmd, String inputHtml) throws IOException, InterruptedException {
-        ProcessBuilder pb = new ProcessBuilder(
-                tidyCmd,
-                "-quiet",
-                "-indent",
-                "-wrap", "120",
-                "--indent-spaces", "2",
-                "--vertical-space", "yes",
-                "--tidy-mark", "no",
-                "--drop-empty-elements", "no",
-                "--preserve-entities", "yes",
-                // Ensure HTML5 parsing so modern sectioning tags are preserved
-                "--doctype", "html5",
-                // Be explicit about HTML5 sectioning elements as block-level
-                "--new-blocklevel-tags", "main,section,article,header,footer,nav"
-        );
-        Process proc = pb.start();
-        try (OutputStream os = proc.getOutputStream()) {
-            os.write(inputHtml.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Runs formatter into out. Documents up to BUFFERED_MAX_CHARS are formatted into a buffer
+     * first: a RuntimeException leaves out untouched and returns false. Larger ones stream, and a
+     * RuntimeException part-way is rethrown as an IOException (out already holds a prefix).
+     */
+    private static boolean writeGuarded(String name, int size, DocumentWriter formatter, Writer out, boolean debug)
+            throws IOException {
+        if (size <= BUFFERED_MAX_CHARS) {
+            StringWriter buffer = new StringWriter(size + size / 4 + 256);
+            try {
+                formatter.writeTo(buffer);
+            } catch (RuntimeException e) {
+                if (debug) {
+                    System.out.println("[HtmlBeautifier] " + name + " failed: " + e);
+                }
+                return false;
+            }
+            out.write(buffer.toString());
+            return true;
         }
-
-        String stdout = readAll(proc.getInputStream());
-        String stderr = readAll(proc.getErrorStream());
-        int exit = proc.waitFor();
-
-        if ((exit == 0 || exit == 1) && stdout != null && !stdout.isBlank()) {
-            String cleaned = stdout.endsWith("\n") ? stdout : stdout + "\n";
-            return new TidyResult(cleaned, stderr, exit);
+        try {
+            formatter.writeTo(out);
+            return true;
+        } catch (RuntimeException e) {
+            throw new IOException(name + " failed after writing part of the document (" + size + " chars): " + e, e);
         }
-        return new TidyResult(null, stderr, exit);
     }
 
-    private static String readAll(InputStream in) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            boolean first = true;
-            while ((line = br.readLine()) != null) {
-                if (!first) sb.append('\n');
-                sb.append(line);
-                first = false;
-            }
-            return sb.toString();
-        }
-    }
+    /* -------------------------------------------------------
+       External Tidy support (process handling lives in TidyPool)
+       ------------------------------------------------------- */
 
     private static String buildDebugComment(String stderr) {
         String sanitized = stderr.replace("-->", "--&gt;");
@@ -164,134 +203,112 @@ public final class HtmlBeautifier {
     }
 
     /* -------------------------------------------------------
-       Pre-aware naive formatter
+       Pre-aware naive formatter (streaming)
        ------------------------------------------------------- */
 
-    private static String naivePrettyPrint(String html) {
-        // Normalize newlines for consistency
-        String normalized = html.replace("\r\n", "\n").replace("\r", "\n");
-
-        StringBuilder out = new StringBuilder(normalized.length() + 256);
-        int pos = 0;
-        while (pos < normalized.length()) {
-            int preOpen = indexOfIgnoreCase(normalized, "<pre", pos);
-            if (preOpen < 0) {
-                // No more <pre>; pretty-print the rest (outside-pre)
-                prettyOutside(out, normalized.substring(pos));
-                break;
-            }
-            // Pretty-print segment before <pre>
-            prettyOutside(out, normalized.substring(pos, preOpen));
-
-            // Find end of the <pre ...> open tag
-            int preTagEnd = normalized.indexOf('>', preOpen);
-            if (preTagEnd < 0) {
-                // Malformed; just append the rest
-                out.append(normalized.substring(preOpen));
-                break;
-            }
-
-            // Find matching closing </pre>
-            int preClose = indexOfIgnoreCase(normalized, "</pre>", preTagEnd + 1);
-            if (preClose < 0) {
-                // No closing; append the rest unchanged
-                out.append(normalized.substring(preOpen));
-                break;
-            }
-
-            // Pass the entire <pre>...</pre> block through unchanged
-            int preEnd = preClose + 6; // "</pre>".length()
-            out.append(normalized, preOpen, preEnd);
-            pos = preEnd;
-        }
-        return out.toString();
-    }
-
-    // Pretty-print a fragment that is guaranteed to be outside any <pre>...</pre>
-    private static void prettyOutside(StringBuilder out, String fragment) {
+    /**
+     * Indents html into out in a single pass. Each tag and each trimmed text run goes on its own
+     * line; <pre>...</pre> blocks pass through unchanged (indentation restarts at 0 after each one);
+     * newlines before </span>, </p> and </code> are collapsed on the way out.
+     */
+    public static void prettyPrint(String html, Writer out) throws IOException {
+        // Normalize newlines for consistency (copy only when the document has CRs)
+        String s = html.indexOf('\r') < 0 ? html : html.replace("\r\n", "\n").replace('\r', '\n');
+        Writer w = new CloserCollapsingWriter(out);
+        final int n = s.length();
         int indent = 0;
-        final int n = fragment.length();
-        StringBuilder token = new StringBuilder();
+        int tokenStart = 0;     // start of the current text run or tag
         boolean inTag = false;
 
-        for (int i = 0; i < n; i++) {
-            char c = fragment.charAt(i);
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+
+            if (c == '<' && s.regionMatches(true, i, "<pre", 0, 4)) {
+                // End of an outside-pre fragment: flush what is pending, then pass the block through
+                writeTextLine(w, s, tokenStart, i, indent);
+                int preTagEnd = s.indexOf('>', i);
+                int preClose = preTagEnd < 0 ? -1 : indexOfIgnoreCase(s, "</pre>", preTagEnd + 1);
+                if (preClose < 0) {
+                    // Malformed / unclosed; append the rest unchanged
+                    w.write(s, i, n - i);
+                    w.flush();
+                    return;
+                }
+                int preEnd = preClose + 6; // "</pre>".length()
+                w.write(s, i, preEnd - i);
+                i = tokenStart = preEnd;
+                indent = 0;
+                inTag = false;
+                continue;
+            }
+
             if (!inTag) {
                 if (c == '<') {
-                    // flush text token
-                    if (token.length() > 0) {
-                        String text = token.toString().trim();
-                        if (!text.isEmpty()) {
-                            appendIndent(out, indent).append(text).append('\n');
-                        }
-                        token.setLength(0);
-                    }
+                    writeTextLine(w, s, tokenStart, i, indent);
                     inTag = true;
-                    token.append(c);
-                } else {
-                    token.append(c);
+                    tokenStart = i;
                 }
-            } else {
-                token.append(c);
-                if (c == '>') {
-                    String tag = token.toString();
-                    token.setLength(0);
-                    inTag = false;
-
-                    String tLower = tag.toLowerCase();
-                    if (tLower.startsWith("<!--")) {
-                        // Treat comments as a single, non-indenting line
-                        appendIndent(out, indent).append(tag.trim()).append('\n');
-                        continue;
-                    }
-
-                    String name = extractTagName(tLower);
-                    boolean closing = tLower.startsWith("</");
-                    boolean selfClosing = tLower.endsWith("/>") || isVoidElement(name);
-
-                    if (closing) {
-                        if (indent > 0) indent--;
-                        appendIndent(out, indent).append(tag.trim()).append('\n');
-                    } else {
-                        appendIndent(out, indent).append(tag.trim()).append('\n');
-                        if (!selfClosing) {
-                            indent++;
-                        }
+            } else if (c == '>') {
+                int tagStart = tokenStart;
+                int tagEnd = i + 1;
+                inTag = false;
+                tokenStart = tagEnd;
+
+                if (s.startsWith("<!--", tagStart)) {
+                    // Treat comments as a single, non-indenting line
+                    writeLine(w, s, tagStart, tagEnd, indent);
+                } else if (s.charAt(tagStart + 1) == '/') {
+                    if (indent > 0) indent--;
+                    writeLine(w, s, tagStart, tagEnd, indent);
+                } else {
+                    writeLine(w, s, tagStart, tagEnd, indent);
+                    boolean selfClosing = s.charAt(i - 1) == '/' || isVoidElement(s, tagStart + 1);
+                    if (!selfClosing) {
+                        indent++;
                     }
                 }
             }
+            i++;
         }
 
-        // Flush any trailing text token
-        if (token.length() > 0) {
-            String text = token.toString().trim();
-            if (!text.isEmpty()) {
-                appendIndent(out, indent).append(text).append('\n');
-            }
-        }
+        // Flush any trailing text (or unterminated tag) token
+        writeTextLine(w, s, tokenStart, n, indent);
+        w.flush();
     }
 
-    private static String extractTagName(String tagLower) {
-        // Expects something like "<tag ...>" or "</tag ...>"
-        int start = 1; // skip '<'
-        if (tagLower.length() <= 1) return "";
-        if (tagLower.charAt(1) == '/') start = 2;
-        int i = start;
-        while (i < tagLower.length()) {
-            char ch = tagLower.charAt(i);
-            if (!Character.isLetterOrDigit(ch) && ch != ':' && ch != '-' && ch != '_') break;
-            i++;
+    private static void writeTextLine(Writer w, String s, int start, int end, int indent) throws IOException {
+        while (start < end && s.charAt(start) <= ' ') start++;
+        while (end > start && s.charAt(end - 1) <= ' ') end--;
+        if (start < end) {
+            writeLine(w, s, start, end, indent);
         }
-        return (i > start) ? tagLower.substring(start, i) : "";
     }
 
-    private static boolean isVoidElement(String name) {
-        // HTML void elements: no separate closing tag and not container-like
-        return "area".equals(name) || "base".equals(name) || "br".equals(name)
-                || "col".equals(name) || "embed".equals(name) || "hr".equals(name)
-                || "img".equals(name) || "input".equals(name) || "link".equals(name)
-                || "meta".equals(name) || "param".equals(name) || "source".equals(name)
-                || "track".equals(name) || "wbr".equals(name);
+    private static void writeLine(Writer w, String s, int start, int end, int indent) throws IOException {
+        for (int k = 0; k < indent; k++) w.write("  ");
+        w.write(s, start, end - start);
+        w.write('\n');
+    }
+
+    private static final String[] VOID_ELEMENTS = {
+            "area", "base", "br", "col", "embed", "hr", "img", "input",
+            "link", "meta", "param", "source", "track", "wbr"
+    };
+
+    /** HTML void elements (no separate closing tag); name starts at nameStart, compared case-insensitively. */
+    private static boolean isVoidElement(String s, int nameStart) {
+        int end = nameStart;
+        while (end < s.length()) {
+            char ch = Character.toLowerCase(s.charAt(end));
+            if (!Character.isLetterOrDigit(ch) && ch != ':' && ch != '-' && ch != '_') break;
+            end++;
+        }
+        int len = end - nameStart;
+        for (String v : VOID_ELEMENTS) {
+            if (v.length() == len && s.regionMatches(true, nameStart, v, 0, len)) return true;
+        }
+        return false;
     }
 
     private static int indexOfIgnoreCase(String haystack, String needle, int fromIndex) {
@@ -312,48 +329,202 @@ public final class HtmlBeautifier {
         return -1;
     }
 
-    private static StringBuilder appendIndent(StringBuilder sb, int level) {
-        for (int i = 0; i < level; i++) sb.append("  ");
-        return sb;
-    }
-
     /* -------------------------------------------------------
        Post-processing: collapse newline before certain closers (pre-aware)
        ------------------------------------------------------- */
 
-    // Collapse any optional indentation + newline immediately before </span>, </p>, or </code>,
-    // but do not touch content inside <pre> blocks.
-    private static String collapseNewlinesBeforeClosersPreAware(String html) {
-        StringBuilder out = new StringBuilder(html.length());
-        int pos = 0;
-        while (pos < html.length()) {
-            int preOpen = indexOfIgnoreCase(html, "<pre", pos);
-            if (preOpen < 0) {
-                out.append(collapseNewlinesBeforeClosersSimple(html.substring(pos)));
-                break;
+    /**
+     * Streaming equivalent of replacing (?m)[ \t]*\R[ \t]*(</(?:span|p|code)>) with $1 outside
+     * <pre>...</pre>: optional indentation + one line break + optional indentation directly before
+     * </span>, </p> or </code> is dropped. Whitespace is held back only while it could still be
+     * part of such a run; everything else is written through immediately.
+     */
+    private static final class CloserCollapsingWriter extends FilterWriter {
+
+        private static final String[] CLOSERS = {"</span>", "</p>", "</code>"};
+        private static final String PRE_OPEN = "<pre";
+        private static final String PRE_CLOSE = "</pre>";
+
+        private enum Mode { OUTSIDE, PRE_TAG, IN_PRE }
+
+        private Mode mode = Mode.OUTSIDE;
+        private char[] pending = new char[64];        // held-back whitespace
+        private int pendingLen;
+        private final char[] tag = new char[8];       // "<..." that may still become a closer or <pre
+        private int tagLen;
+        private int preCloseMatched;
+
+        CloserCollapsingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            accept((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) accept(cbuf[i]);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) accept(str.charAt(i));
+        }
+
+        /** Releases held-back characters; call only at end of input (a split run would not collapse). */
+        @Override
+        public void flush() throws IOException {
+            if (mode == Mode.OUTSIDE) {
+                flushPending();
+                flushTag();
             }
-            out.append(collapseNewlinesBeforeClosersSimple(html.substring(pos, preOpen)));
+            out.flush();
+        }
 
-            int preTagEnd = html.indexOf('>', preOpen);
-            if (preTagEnd < 0) {
-                out.append(html.substring(preOpen));
-                break;
+        @Override
+        public void close() throws IOException {
+            flush();
+            out.close();
+        }
+
+        private void accept(char c) throws IOException {
+            switch (mode) {
+                case PRE_TAG -> {
+                    out.write(c);
+                    if (c == '>') {
+                        mode = Mode.IN_PRE;
+                        preCloseMatched = 0;
+                    }
+                }
+                case IN_PRE -> {
+                    out.write(c);
+                    if (Character.toLowerCase(c) == PRE_CLOSE.charAt(preCloseMatched)) {
+                        if (++preCloseMatched == PRE_CLOSE.length()) mode = Mode.OUTSIDE;
+                    } else {
+                        preCloseMatched = (c == '<') ? 1 : 0;
+                    }
+                }
+                case OUTSIDE -> acceptOutside(c);
+            }
+        }
+
+        private void acceptOutside(char c) throws IOException {
+            if (tagLen > 0) {
+                if (tagLen < tag.length) {
+                    tag[tagLen] = c;
+                    if (isPrefixIgnoreCase(PRE_OPEN, tagLen + 1)) {
+                        tagLen++;
+                        if (tagLen == PRE_OPEN.length()) {
+                            flushPending();
+                            flushTag();
+                            mode = Mode.PRE_TAG;
+                        }
+                        return;
+                    }
+                    String closer = closerWithPrefix(tagLen + 1);
+                    if (closer != null) {
+                        tagLen++;
+                        if (tagLen == closer.length()) {
+                            out.write(pending, 0, collapsibleStart());
+                            pendingLen = 0;
+                            out.write(closer);
+                            tagLen = 0;
+                        }
+                        return;
+                    }
+                }
+                // Not a closer after all: release everything and re-examine c on its own
+                flushPending();
+                flushTag();
+                acceptOutside(c);
+                return;
             }
-            int preClose = indexOfIgnoreCase(html, "</pre>", preTagEnd + 1);
-            if (preClose < 0) {
-                out.append(html.substring(preOpen));
-                break;
+            if (c == '<') {
+                tag[tagLen++] = c;
+            } else if (c == ' ' || c == '\t') {
+                hold(c);
+            } else if (isLineBreak(c)) {
+                hold(c);
+                // Only the last line break (with the blanks around it) can ever be dropped
+                int lb = pendingLen - 1;
+                if (c == '\n' && lb > 0 && pending[lb - 1] == '\r') lb--;
+                int start = blanksBefore(lb);
+                if (start > 0) {
+                    out.write(pending, 0, start);
+                    System.arraycopy(pending, start, pending, 0, pendingLen - start);
+                    pendingLen -= start;
+                }
+            } else {
+                flushPending();
+                out.write(c);
             }
-            int preEnd = preClose + 6; // length of "</pre>"
-            out.append(html, preOpen, preEnd);
-            pos = preEnd;
         }
-        return out.toString();
-    }
 
-    // Perform the collapse on a fragment that is guaranteed to be outside <pre>
-    private static String collapseNewlinesBeforeClosersSimple(String frag) {
-        // (?m) multiline, \R any line break; remove indentation+newline before the closing tag
-        return frag.replaceAll("(?m)[ \\t]*\\R[ \\t]*(</(?:span|p|code)>)", "$1");
+        private boolean isPrefixIgnoreCase(String word, int len) {
+            if (len > word.length()) return false;
+            for (int k = 0; k < len; k++) {
+                if (Character.toLowerCase(tag[k]) != word.charAt(k)) return false;
+            }
+            return true;
+        }
+
+        /** Closer whose first len characters equal tag[0, len) (exact case), or null. */
+        private String closerWithPrefix(int len) {
+            outer:
+            for (String cl : CLOSERS) {
+                if (len > cl.length()) continue;
+                for (int k = 0; k < len; k++) {
+                    if (tag[k] != cl.charAt(k)) continue outer;
+                }
+                return cl;
+            }
+            return null;
+        }
+
+        /** Index in pending where a trailing [ \t]*\R[ \t]* run starts; pendingLen when there is none. */
+        private int collapsibleStart() {
+            int j = pendingLen;
+            while (j > 0 && isBlank(pending[j - 1])) j--;
+            if (j == 0 || !isLineBreak(pending[j - 1])) return pendingLen;
+            int lb = j - 1;
+            if (pending[lb] == '\n' && lb > 0 && pending[lb - 1] == '\r') lb--;
+            return blanksBefore(lb);
+        }
+
+        private int blanksBefore(int index) {
+            while (index > 0 && isBlank(pending[index - 1])) index--;
+            return index;
+        }
+
+        private void hold(char c) {
+            if (pendingLen == pending.length) pending = Arrays.copyOf(pending, pendingLen * 2);
+            pending[pendingLen++] = c;
+        }
+
+        private void flushPending() throws IOException {
+            if (pendingLen > 0) {
+                out.write(pending, 0, pendingLen);
+                pendingLen = 0;
+            }
+        }
+
+        private void flushTag() throws IOException {
+            if (tagLen > 0) {
+                out.write(tag, 0, tagLen);
+                tagLen = 0;
+            }
+        }
+
+        private static boolean isBlank(char c) {
+            return c == ' ' || c == '\t';
+        }
+
+        // Same set as the regex \R
+        private static boolean isLineBreak(char c) {
+            return c == '\n' || c == '\r' || c == '\u000B' || c == '\f'
+                    || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+// Current filename: HtmlEscaper.java
+
+package formatter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Shared HTML text escaper (&amp; &lt; &gt; &quot; &#39;).
+ *
+ * One pass over the input; runs of characters that need no escaping are appended in bulk.
+ * escape(String) returns the SAME instance when nothing needs escaping, so plain prose and
+ * program output are not copied at all.
+ */
+public final class HtmlEscaper {
+
+    private HtmlEscaper() {}
+
+    /** Escaped copy of s ("" for null); s itself when it contains nothing to escape. */
+    public static String escape(String s) {
+        if (s == null) return "";
+        int first = firstSpecial(s, 0, s.length());
+        if (first < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        sb.append(s, 0, first);
+        appendEscaped(sb, s, first, s.length());
+        return sb.toString();
+    }
+
+    /** Appends s escaped (nothing for null). */
+    public static void appendEscaped(StringBuilder out, CharSequence s) {
+        if (s == null) return;
+        appendEscaped(out, s, 0, s.length());
+    }
+
+    public static void appendEscaped(StringBuilder out, CharSequence s, int start, int end) {
+        try {
+            appendEscaped((Appendable) out, s, start, end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder never throws
+        }
+    }
+
+    /** Appends s[start, end) escaped. */
+    public static void appendEscaped(Appendable out, CharSequence s, int start, int end) throws IOException {
+        int run = start;
+        for (int i = start; i < end; i++) {
+            String entity = entity(s.charAt(i));
+            if (entity != null) {
+                if (run < i) out.append(s, run, i);
+                out.append(entity);
+                run = i + 1;
+            }
+        }
+        if (run < end) out.append(s, run, end);
+    }
+
+    /** Appends a single character, escaped when needed. */
+    public static void appendEscaped(Appendable out, char c) throws IOException {
+        String entity = entity(c);
+        if (entity != null) out.append(entity);
+        else out.append(c);
+    }
+
+    private static int firstSpecial(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (entity(s.charAt(i)) != null) return i;
+        }
+        return -1;
+    }
+
+    private static String entity(char c) {
+        return switch (c) {
+            case '&' -> "&amp;";
+            case '<' -> "&lt;";
+            case '>' -> "&gt;";
+            case '"' -> "&quot;";
+            case '\'' -> "&#39;";
+            default -> null;
+        };
+    }
+}
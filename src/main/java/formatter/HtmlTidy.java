@@ -0,0 +1,748 @@
+// Current filename: HtmlTidy.java
+
+package formatter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Built-in, dependency-free replacement for the external HTML Tidy process.
+ *
+ * Tokenizes the document, builds an element tree (with the usual implied end tags for p, li,
+ * dt/dd, tr, td/th, option and table sections) and serializes it the way our tidy flags did:
+ *   -indent --indent-spaces 2 -wrap 120 --vertical-space yes --doctype html5
+ *   --new-blocklevel-tags main,section,article,header,footer,nav
+ *
+ *  - Block elements start on their own line; their content is indented by 2 spaces.
+ *  - Inline content (text, span, code, a, ...) is flowed with collapsed whitespace and wrapped
+ *    at 120 columns.
+ *  - pre, script, style and textarea content is emitted verbatim.
+ *  - Vertical space: a blank line separates block children of body and sectioning elements.
+ *  - Entities are preserved; a bare '&' is written as &amp;.
+ *
+ * Problems are reported like tidy's stderr, e.g. "line 3 column 7 - Warning: missing </span>".
+ * The result is always usable: malformed input is repaired, never rejected.
+ *
+ * parse() + Document.writeTo(Writer) serialize straight into a stream in small chunks, so
+ * the formatted copy of the document is never held as one String. Like the tree builder, the
+ * serializer walks the tree with explicit stacks, so nesting depth is bounded by memory rather
+ * than the thread stack; indentation stops growing at MAX_INDENT_DEPTH levels to keep
+ * pathologically deep documents from producing quadratic output.
+ */
+public final class HtmlTidy {
+
+    private HtmlTidy() {}
+
+    public static final int WRAP = 120;
+    public static final int INDENT = 2;
+    public static final int MAX_INDENT_DEPTH = 100;
+
+    /** A parsed and repaired document; its diagnostics are complete before anything is written. */
+    public static final class Document {
+        private final Source src;
+        private final Element root;
+
+        private Document(Source src, Element root) {
+            this.src = src;
+            this.root = root;
+        }
+
+        public List<String> diagnostics() {
+            return src.diagnostics;
+        }
+
+        /** Diagnostics joined one per line, as tidy would print them ("" when clean). */
+        public String messages() {
+            return String.join("\n", src.diagnostics);
+        }
+
+        /** Serializes the tidied document into out, a few KB at a time. */
+        public void writeTo(Writer out) throws IOException {
+            try {
+                new Serializer(new StringBuilder(Serializer.CHUNK + WRAP * 2), out).document(root, src);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    public static Document parse(String html) {
+        Source src = new Source(html == null ? "" : html.replace("\r\n", "\n").replace('\r', '\n'));
+        return new Document(src, new TreeBuilder(src).build());
+    }
+
+    /* -------------------------------------------------------
+     * Element categories
+     * ------------------------------------------------------- */
+
+    private static final Set<String> VOID = Set.of(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta",
+            "param", "source", "track", "wbr");
+
+    /** Content kept byte-for-byte (no re-indenting or wrapping). */
+    private static final Set<String> VERBATIM = Set.of("pre", "script", "style", "textarea");
+
+    /** Content is raw text up to the matching end tag (no markup inside). */
+    private static final Set<String> RAW_TEXT = Set.of("script", "style", "textarea");
+
+    private static final Set<String> INLINE = Set.of(
+            "a", "abbr", "b", "bdi", "bdo", "big", "br", "button", "cite", "code", "data", "del",
+            "dfn", "em", "font", "i", "img", "input", "ins", "kbd", "label", "mark", "q", "s",
+            "samp", "select", "small", "span", "strike", "strong", "sub", "sup", "time", "tt",
+            "u", "var", "wbr");
+
+    /** Elements whose start tag implicitly closes an open <p>. */
+    private static final Set<String> CLOSES_P = Set.of(
+            "address", "article", "aside", "blockquote", "details", "div", "dl", "fieldset",
+            "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6",
+            "header", "hr", "main", "nav", "ol", "p", "pre", "section", "table", "ul");
+
+    /** End tags that may be omitted without a warning. */
+    private static final Set<String> OPTIONAL_END = Set.of(
+            "p", "li", "dt", "dd", "tr", "td", "th", "thead", "tbody", "tfoot", "option",
+            "html", "head", "body", "colgroup");
+
+    /** Parents whose block children get a blank line between them (--vertical-space). */
+    private static final Set<String> SPACED = Set.of(
+            "body", "main", "section", "article", "header", "footer", "nav", "aside");
+
+    /** Start tag -> an open element it implicitly closes (searched up to the nearest boundary). */
+    private record ImpliedClose(Set<String> targets, Set<String> boundaries) {}
+
+    private static final Map<String, ImpliedClose> IMPLIED_CLOSE = Map.of(
+            "li", new ImpliedClose(Set.of("li"), Set.of("ul", "ol")),
+            "dt", new ImpliedClose(Set.of("dt", "dd"), Set.of("dl")),
+            "dd", new ImpliedClose(Set.of("dt", "dd"), Set.of("dl")),
+            "tr", new ImpliedClose(Set.of("tr"), Set.of("table", "thead", "tbody", "tfoot")),
+            "td", new ImpliedClose(Set.of("td", "th"), Set.of("tr", "table")),
+            "th", new ImpliedClose(Set.of("td", "th"), Set.of("tr", "table")),
+            "thead", new ImpliedClose(Set.of("thead", "tbody", "tfoot"), Set.of("table")),
+            "tbody", new ImpliedClose(Set.of("thead", "tbody", "tfoot"), Set.of("table")),
+            "tfoot", new ImpliedClose(Set.of("thead", "tbody", "tfoot"), Set.of("table")),
+            "option", new ImpliedClose(Set.of("option"), Set.of("select", "datalist", "optgroup")));
+
+    /* -------------------------------------------------------
+     * Tree
+     * ------------------------------------------------------- */
+
+    private abstract static class Node {}
+
+    private static final class Text extends Node {
+        final String text;
+        Text(String text) { this.text = text; }
+    }
+
+    private static final class Comment extends Node {
+        final String raw;   // including <!-- -->
+        Comment(String raw) { this.raw = raw; }
+    }
+
+    private static final class Element extends Node {
+        final String name;                   // lower case; "" for the document root
+        final List<String[]> attrs;          // {name, value or null}
+        final List<Node> children = new ArrayList<>();
+        final int offset;
+        boolean block;                       // laid out as a block (set by Serializer.markBlocks)
+        Element(String name, List<String[]> attrs, int offset) {
+            this.name = name;
+            this.attrs = attrs;
+            this.offset = offset;
+        }
+    }
+
+    /** Input text, doctype and diagnostics (with line/column lookup). */
+    private static final class Source {
+        final String text;
+        final List<String> diagnostics = new ArrayList<>();
+        String doctype;
+        private int[] lineStarts;
+
+        Source(String text) { this.text = text; }
+
+        void warn(int offset, String msg) {
+            diagnostics.add(position(offset) + " - Warning: " + msg);
+        }
+
+        private String position(int offset) {
+            if (lineStarts == null) {
+                List<Integer> starts = new ArrayList<>();
+                starts.add(0);
+                for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) starts.add(i + 1);
+                lineStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+            }
+            int line = Arrays.binarySearch(lineStarts, offset);
+            if (line < 0) line = -line - 2;
+            return "line " + (line + 1) + " column " + (offset - lineStarts[line] + 1);
+        }
+    }
+
+    /* -------------------------------------------------------
+     * Tokenizer + tree builder
+     * ------------------------------------------------------- */
+
+    private static final class TreeBuilder {
+        private final Source src;
+        private final String s;
+        private final Deque<Element> open = new ArrayDeque<>();
+        private final Element root = new Element("", List.of(), 0);
+        private int pos;
+
+        TreeBuilder(Source src) {
+            this.src = src;
+            this.s = src.text;
+        }
+
+        Element build() {
+            open.push(root);
+            final int n = s.length();
+            while (pos < n) {
+                int lt = s.indexOf('<', pos);
+                if (lt < 0) {
+                    text(pos, n);
+                    break;
+                }
+                if (lt > pos) text(pos, lt);
+                pos = lt;
+                if (s.startsWith("<!--", lt)) {
+                    comment(lt);
+                } else if (lt + 1 < n && s.charAt(lt + 1) == '!') {
+                    declaration(lt);
+                } else if (lt + 1 < n && s.charAt(lt + 1) == '/' && lt + 2 < n && Character.isLetter(s.charAt(lt + 2))) {
+                    endTag(lt);
+                } else if (lt + 1 < n && Character.isLetter(s.charAt(lt + 1))) {
+                    startTag(lt);
+                } else {
+                    text(lt, lt + 1); // stray '<'
+                    pos = lt + 1;
+                }
+            }
+            while (open.size() > 1) {
+                Element e = open.pop();
+                if (!OPTIONAL_END.contains(e.name)) {
+                    src.warn(e.offset, "missing </" + e.name + ">");
+                }
+            }
+            if (src.doctype == null) {
+                src.warn(0, "missing <!DOCTYPE> declaration");
+            }
+            return root;
+        }
+
+        private void text(int start, int end) {
+            checkAmpersands(start, end);
+            open.peek().children.add(new Text(s.substring(start, end)));
+            pos = end;
+        }
+
+        private void checkAmpersands(int start, int end) {
+            for (int i = s.indexOf('&', start); i >= 0 && i < end; i = s.indexOf('&', i + 1)) {
+                if (entityLength(s, i, end) == 0) {
+                    src.warn(i, "unescaped & which should be written as &amp;");
+                }
+            }
+        }
+
+        private void comment(int lt) {
+            int close = s.indexOf("-->", lt + 4);
+            int end;
+            if (close < 0) {
+                src.warn(lt, "malformed comment");
+                end = s.length();
+            } else {
+                end = close + 3;
+            }
+            open.peek().children.add(new Comment(s.substring(lt, end)));
+            pos = end;
+        }
+
+        private void declaration(int lt) {
+            int gt = s.indexOf('>', lt);
+            int end = gt < 0 ? s.length() : gt + 1;
+            if (s.regionMatches(true, lt, "<!doctype", 0, 9)) {
+                if (src.doctype != null) src.warn(lt, "repeated <!DOCTYPE> declaration");
+                src.doctype = "<!DOCTYPE html>";
+            } else {
+                src.warn(lt, "discarding malformed <!...> declaration");
+            }
+            pos = end;
+        }
+
+        private void endTag(int lt) {
+            int p = lt + 2;
+            int nameEnd = nameEnd(p);
+            String name = s.substring(p, nameEnd).toLowerCase(Locale.ROOT);
+            int gt = s.indexOf('>', nameEnd);
+            pos = gt < 0 ? s.length() : gt + 1;
+
+            if (!isOpen(name)) {
+                src.warn(lt, "discarding unexpected </" + name + ">");
+                return;
+            }
+            while (true) {
+                Element e = open.pop();
+                if (e.name.equals(name)) break;
+                if (!OPTIONAL_END.contains(e.name)) {
+                    src.warn(lt, "missing </" + e.name + "> before </" + name + ">");
+                }
+            }
+        }
+
+        private void startTag(int lt) {
+            int p = lt + 1;
+            int nameEnd = nameEnd(p);
+            String name = s.substring(p, nameEnd).toLowerCase(Locale.ROOT);
+            List<String[]> attrs = new ArrayList<>();
+            p = nameEnd;
+            boolean selfClosing = false;
+            final int n = s.length();
+            while (true) {
+                while (p < n && Character.isWhitespace(s.charAt(p))) p++;
+                if (p >= n) {
+                    src.warn(lt, "<" + name + "> missing '>' for end of tag");
+                    break;
+                }
+                char c = s.charAt(p);
+                if (c == '>') { p++; break; }
+                if (c == '/' && p + 1 < n && s.charAt(p + 1) == '>') { selfClosing = true; p += 2; break; }
+                if (c == '<') {
+                    src.warn(lt, "<" + name + "> missing '>' for end of tag");
+                    break;
+                }
+                int an = p;
+                while (p < n && !Character.isWhitespace(s.charAt(p)) && "=>/<".indexOf(s.charAt(p)) < 0) p++;
+                if (p == an) { p++; continue; } // stray '/' or '='
+                String attrName = s.substring(an, p).toLowerCase(Locale.ROOT);
+                int q = p;
+                while (q < n && Character.isWhitespace(s.charAt(q))) q++;
+                String value = null;
+                if (q < n && s.charAt(q) == '=') {
+                    q++;
+                    while (q < n && Character.isWhitespace(s.charAt(q))) q++;
+                    if (q < n && (s.charAt(q) == '"' || s.charAt(q) == '\'')) {
+                        char quote = s.charAt(q);
+                        int close = s.indexOf(quote, q + 1);
+                        if (close < 0) {
+                            src.warn(q, "<" + name + "> attribute " + attrName + " lacks closing quote");
+                            close = n;
+                        }
+                        value = s.substring(q + 1, close);
+                        p = Math.min(n, close + 1);
+                    } else {
+                        int vs = q;
+                        while (q < n && !Character.isWhitespace(s.charAt(q)) && s.charAt(q) != '>') q++;
+                        value = s.substring(vs, q);
+                        p = q;
+                    }
+                }
+                boolean dup = false;
+                for (String[] a : attrs) dup |= a[0].equals(attrName);
+                if (dup) {
+                    src.warn(an, "<" + name + "> dropping value \"" + (value == null ? "" : value) + "\" for repeated attribute \"" + attrName + "\"");
+                } else {
+                    attrs.add(new String[]{attrName, value});
+                }
+            }
+            pos = p;
+
+            impliedEnds(name, lt);
+            Element e = new Element(name, attrs, lt);
+            open.peek().children.add(e);
+            if (VOID.contains(name)) return;
+            if (selfClosing) {
+                // HTML ignores "/>" on non-void elements; tidy flags it
+                src.warn(lt, "<" + name + "> element not empty or not closed");
+            }
+            open.push(e);
+            if (RAW_TEXT.contains(name)) {
+                rawText(e);
+            }
+        }
+
+        private void rawText(Element e) {
+            int close = indexOfIgnoreCase(s, "</" + e.name, pos);
+            int end = close < 0 ? s.length() : close;
+            if (end > pos) e.children.add(new Text(s.substring(pos, end)));
+            pos = end; // the end tag itself is handled by the main loop
+        }
+
+        private void impliedEnds(String name, int at) {
+            if (CLOSES_P.contains(name)) {
+                closeIfOpenInScope("p", at, name);
+            }
+            ImpliedClose rule = IMPLIED_CLOSE.get(name);
+            if (rule != null) {
+                for (Element e : open) {
+                    if (rule.targets().contains(e.name)) {
+                        closeThrough(e, at, name);
+                        return;
+                    }
+                    if (rule.boundaries().contains(e.name)) return;
+                }
+            }
+        }
+
+        private void closeIfOpenInScope(String target, int at, String by) {
+            for (Element e : open) {
+                if (e.name.equals(target)) {
+                    closeThrough(e, at, by);
+                    return;
+                }
+                if (!INLINE.contains(e.name)) return; // p only closes across inline ancestors
+            }
+        }
+
+        /** Pops up to and including target, warning for anything that needed an explicit end tag. */
+        private void closeThrough(Element target, int at, String by) {
+            while (true) {
+                Element e = open.pop();
+                if (e != target && !OPTIONAL_END.contains(e.name)) {
+                    src.warn(at, "missing </" + e.name + "> before <" + by + ">");
+                }
+                if (e == target) return;
+            }
+        }
+
+        private boolean isOpen(String name) {
+            for (Element e : open) {
+                if (e.name.equals(name)) return true;
+            }
+            return false;
+        }
+
+        private int nameEnd(int p) {
+            while (p < s.length()) {
+                char ch = s.charAt(p);
+                if (!Character.isLetterOrDigit(ch) && ch != ':' && ch != '-' && ch != '_') break;
+                p++;
+            }
+            return p;
+        }
+    }
+
+    /** Length of a well-formed character reference at s[i] ('&' ... ';'), else 0. */
+    private static int entityLength(String s, int i, int end) {
+        int p = i + 1;
+        if (p < end && s.charAt(p) == '#') {
+            p++;
+            boolean hex = p < end && (s.charAt(p) == 'x' || s.charAt(p) == 'X');
+            if (hex) p++;
+            int digits = p;
+            while (p < end && (hex ? Character.digit(s.charAt(p), 16) >= 0 : Character.isDigit(s.charAt(p)))) p++;
+            if (p == digits) return 0;
+        } else {
+            int letters = p;
+            while (p < end && Character.isLetterOrDigit(s.charAt(p)) && s.charAt(p) < 128) p++;
+            if (p == letters || !Character.isLetter(s.charAt(letters))) return 0;
+        }
+        return (p < end && s.charAt(p) == ';') ? p + 1 - i : 0;
+    }
+
+    private static int indexOfIgnoreCase(String haystack, String needle, int from) {
+        for (int i = from; i <= haystack.length() - needle.length(); i++) {
+            if (haystack.regionMatches(true, i, needle, 0, needle.length())) return i;
+        }
+        return -1;
+    }
+
+    /* -------------------------------------------------------
+     * Serializer
+     * ------------------------------------------------------- */
+
+    private static final class Serializer {
+        static final int CHUNK = 8 * 1024;
+
+        private final StringBuilder out;
+        private final Writer sink;
+        private final StringBuilder line = new StringBuilder(WRAP + 32);
+        private int lineIndent;
+        private boolean pendingSpace;
+
+        Serializer(StringBuilder out, Writer sink) {
+            this.out = out;
+            this.sink = sink;
+        }
+
+        void document(Element root, Source src) {
+            out.append(src.doctype != null ? src.doctype : "<!DOCTYPE html>").append('\n');
+            markBlocks(root);
+            blocks(root);
+            drain(0);
+        }
+
+        /** Hands buffered output to the sink once at least min chars are pending. */
+        private void drain(int min) {
+            if (out.length() == 0 || out.length() < min) return;
+            try {
+                sink.append(out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            out.setLength(0);
+        }
+
+        /** An element whose block children are being written; depth is the children's depth. */
+        private static final class Frame {
+            final Element parent;
+            final int depth;
+            final boolean spaced;
+            int next;
+            boolean first = true;
+
+            Frame(Element parent, int depth) {
+                this.parent = parent;
+                this.depth = depth;
+                this.spaced = SPACED.contains(parent.name);
+            }
+        }
+
+        /**
+         * Block children on their own lines; runs of inline content are flowed and wrapped.
+         * Open block elements are kept on an explicit stack; the root itself has no tags.
+         */
+        private void blocks(Element root) {
+            Deque<Frame> stack = new ArrayDeque<>();
+            stack.push(new Frame(root, 0));
+            while (!stack.isEmpty()) {
+                Frame f = stack.peek();
+                List<Node> kids = f.parent.children;
+                if (f.next >= kids.size()) {
+                    stack.pop();
+                    if (f.depth > 0) {
+                        indent(f.depth - 1);
+                        out.append("</").append(f.parent.name).append(">\n");
+                        drain(CHUNK);
+                    }
+                    continue;
+                }
+                Node n = kids.get(f.next);
+                if (isBlock(n)) {
+                    if (f.spaced && !f.first) out.append('\n');
+                    f.first = false;
+                    f.next++;
+                    if (n instanceof Element el) {
+                        if (openBlock(el, f.depth)) stack.push(new Frame(el, f.depth + 1));
+                    } else {
+                        comment((Comment) n, f.depth);
+                    }
+                    drain(CHUNK);
+                    continue;
+                }
+                int j = f.next;
+                while (j < kids.size() && !isBlock(kids.get(j))) j++;
+                if (!isWhitespaceOnly(kids, f.next, j)) {
+                    if (f.spaced && !f.first) out.append('\n');
+                    flow(kids.subList(f.next, j), f.depth);
+                    f.first = false;
+                }
+                f.next = j;
+                drain(CHUNK);
+            }
+        }
+
+        /** Writes the start of a block element; true when its children and end tag are still due. */
+        private boolean openBlock(Element e, int depth) {
+            indent(depth);
+            startTag(out, e);
+            if (VERBATIM.contains(e.name)) {
+                for (Node c : e.children) appendVerbatim(out, c);
+                out.append("</").append(e.name).append(">\n");
+                return false;
+            }
+            out.append('\n');
+            return !VOID.contains(e.name);
+        }
+
+        private void comment(Comment c, int depth) {
+            indent(depth);
+            out.append(c.raw).append('\n');
+        }
+
+        /* ---- inline flow with wrapping ---- */
+
+        /** Nodes and pending end tags (Strings) are taken from one stack, in document order. */
+        private void flow(List<Node> nodes, int depth) {
+            lineIndent = indentWidth(depth);
+            line.setLength(0);
+            pendingSpace = false;
+            Deque<Object> pending = new ArrayDeque<>();
+            pushReversed(pending, nodes);
+            while (!pending.isEmpty()) {
+                Object next = pending.pop();
+                if (next instanceof String endTag) {
+                    attach(endTag);
+                } else if (next instanceof Text t) {
+                    words(t.text);
+                } else if (next instanceof Comment c) {
+                    word(c.raw);
+                } else {
+                    Element e = (Element) next;
+                    StringBuilder tag = new StringBuilder();
+                    startTag(tag, e);
+                    word(tag);
+                    if (VOID.contains(e.name)) continue;
+                    if (VERBATIM.contains(e.name)) {
+                        StringBuilder raw = new StringBuilder();
+                        for (Node c : e.children) appendVerbatim(raw, c);
+                        attach(raw);
+                        attach("</" + e.name + ">");
+                    } else {
+                        pending.push("</" + e.name + ">");
+                        pushReversed(pending, e.children);
+                    }
+                }
+            }
+            endLine();
+        }
+
+        private static void pushReversed(Deque<Object> stack, List<? extends Node> nodes) {
+            for (int k = nodes.size() - 1; k >= 0; k--) stack.push(nodes.get(k));
+        }
+
+        /** Splits text at whitespace; each piece is a wrap point. */
+        private void words(String text) {
+            final int n = text.length();
+            int i = 0;
+            while (i < n) {
+                if (Character.isWhitespace(text.charAt(i))) {
+                    pendingSpace = true;
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < n && !Character.isWhitespace(text.charAt(i))) i++;
+                word(escapeBareAmpersands(text, start, i));
+            }
+        }
+
+        /** Appends a piece, starting a new line first when it would pass the wrap column. */
+        private void word(CharSequence w) {
+            if (line.length() > 0 && pendingSpace && lineIndent + line.length() + 1 + w.length() > WRAP) {
+                endLine();
+            } else if (line.length() > 0 && pendingSpace) {
+                line.append(' ');
+            }
+            pendingSpace = false;
+            line.append(w);
+        }
+
+        /** Appends without a wrap point unless whitespace preceded it. */
+        private void attach(CharSequence w) {
+            if (pendingSpace) {
+                word(w);
+            } else {
+                line.append(w);
+            }
+        }
+
+        private void endLine() {
+            if (line.length() > 0) {
+                for (int k = 0; k < lineIndent; k++) out.append(' ');
+                out.append(line).append('\n');
+                line.setLength(0);
+            }
+            pendingSpace = false;
+        }
+
+        /* ---- verbatim ---- */
+
+        /** Appends n and its subtree exactly as parsed. */
+        private static void appendVerbatim(StringBuilder sb, Node n) {
+            Deque<Object> pending = new ArrayDeque<>();
+            pending.push(n);
+            while (!pending.isEmpty()) {
+                Object next = pending.pop();
+                if (next instanceof String endTag) {
+                    sb.append(endTag);
+                } else if (next instanceof Text t) {
+                    sb.append(t.text);
+                } else if (next instanceof Comment c) {
+                    sb.append(c.raw);
+                } else {
+                    Element e = (Element) next;
+                    startTag(sb, e);
+                    if (VOID.contains(e.name)) continue;
+                    pending.push("</" + e.name + ">");
+                    pushReversed(pending, e.children);
+                }
+            }
+        }
+
+        /* ---- helpers ---- */
+
+        private void indent(int depth) {
+            for (int k = indentWidth(depth); k > 0; k--) out.append(' ');
+        }
+
+        private static int indentWidth(int depth) {
+            return Math.min(depth, MAX_INDENT_DEPTH) * INDENT;
+        }
+
+        private static boolean isBlock(Node n) {
+            return n instanceof Element e && e.block;
+        }
+
+        /**
+         * Sets Element.block for the whole tree: non-inline elements, and inline elements wrapping
+         * blocks (laid out as blocks too). Reverse pre-order visits children before their parents.
+         */
+        private static void markBlocks(Element root) {
+            List<Element> preOrder = new ArrayList<>();
+            Deque<Element> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Element e = stack.pop();
+                preOrder.add(e);
+                for (Node c : e.children) {
+                    if (c instanceof Element child) stack.push(child);
+                }
+            }
+            for (int k = preOrder.size() - 1; k >= 0; k--) {
+                Element e = preOrder.get(k);
+                boolean block = !INLINE.contains(e.name);
+                for (int c = 0; !block && c < e.children.size(); c++) {
+                    block = isBlock(e.children.get(c));
+                }
+                e.block = block;
+            }
+        }
+
+        private static boolean isWhitespaceOnly(List<Node> nodes, int from, int to) {
+            for (int k = from; k < to; k++) {
+                if (!(nodes.get(k) instanceof Text t) || !t.text.isBlank()) return false;
+            }
+            return true;
+        }
+
+        private static void startTag(StringBuilder sb, Element e) {
+            sb.append('<').append(e.name);
+            for (String[] a : e.attrs) {
+                sb.append(' ').append(a[0]);
+                if (a[1] != null) {
+                    String v = a[1];
+                    if (v.indexOf('"') < 0) {
+                        sb.append("=\"").append(v).append('"');
+                    } else if (v.indexOf('\'') < 0) {
+                        sb.append("='").append(v).append('\'');
+                    } else {
+                        sb.append("=\"").append(v.replace("\"", "&quot;")).append('"');
+                    }
+                }
+            }
+            sb.append('>');
+        }
+
+        private static CharSequence escapeBareAmpersands(String text, int start, int end) {
+            int amp = text.indexOf('&', start);
+            if (amp < 0 || amp >= end) return text.subSequence(start, end);
+            StringBuilder sb = new StringBuilder(end - start + 8);
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c == '&' && entityLength(text, i, end) == 0) sb.append("&amp;");
+                else sb.append(c);
+            }
+            return sb;
+        }
+    }
+}
@@ -0,0 +1,547 @@
+// Current filename: InMemoryJavaRunner.java
+
+package formatter;
+
+import javax.tools.*;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * In-process compile-and-run engine (no javac / java child processes).
+ *
+ * Steps:
+ *  1. Compile through javax.tools.JavaCompiler. Class files are captured by an
+ *     in-memory JavaFileManager; sibling sources are found via -sourcepath (package root).
+ *  2. Load the captured classes in a throwaway, isolated ClassLoader whose parent is the
+ *     platform loader (formatter classes are NOT visible to the assignment code). Like the
+ *     subprocess classpath, classes and resources not produced by this compilation come from
+ *     the package root (prebuilt classes, data files read through getResource).
+ *  3. Invoke main(String[]) on a dedicated thread while System.out / System.err / System.in
+ *     are routed to per-run bounded buffers for that thread (and any threads it starts),
+ *     with the same wall-clock timeout as the subprocess path.
+ *
+ * Limitations:
+ *  - System.exit / Runtime.exit / Runtime.halt would terminate the generator itself, so
+ *    programs whose constant pools reference them (see inProcessBlocker) run in a subprocess
+ *    instead; Utils records why in RunMetadata.subprocessFallback.
+ *  - The working directory of this JVM cannot be changed, so relative file paths would resolve
+ *    against the generator's directory instead of the package root. Programs that use file I/O
+ *    (java.io.File*, java.nio.file.Paths / Path.of / Files) run in a subprocess as well.
+ *  - Requires a JDK (ToolProvider.getSystemJavaCompiler() != null).
+ *  - A thread cannot be killed like a process. When a timed-out program's threads ignore the
+ *    interrupt, run() gives up on them (they keep running in this JVM), marks the JVM as
+ *    tainted and returns null: Utils re-runs that program in a subprocess, and every later
+ *    run takes the subprocess path too.
+ */
+public final class InMemoryJavaRunner {
+
+    private InMemoryJavaRunner() {}
+
+    /** Options passed to the compiler; part of the compilation identity. */
+    static final List<String> COMPILER_OPTIONS = List.of("-proc:none", "-encoding", "UTF-8");
+
+    private static final Charset CONSOLE_CHARSET = consoleCharset();
+    private static final InheritableThreadLocal<RingBuffer> CAPTURED_OUT = new InheritableThreadLocal<>();
+    private static final InheritableThreadLocal<RingBuffer> CAPTURED_ERR = new InheritableThreadLocal<>();
+    private static final InheritableThreadLocal<InputStream> CAPTURED_IN = new InheritableThreadLocal<>();
+    private static volatile boolean streamsInstalled;
+
+    /** How long interrupted program threads get to finish after a timeout. */
+    private static final long STOP_GRACE_MS = 500;
+    private static volatile boolean tainted;
+
+    /** sources = every source file that produced a class (main source plus sourcepath siblings). */
+    public record Compilation(boolean success, String diagnostics, Map<String,byte[]> classes, Set<Path> sources) {}
+
+    /** False without a system compiler, and once the JVM is tainted by unstoppable program threads. */
+    public static boolean isAvailable() {
+        return !tainted && ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /** True once a timed-out program left threads running in this JVM (see class doc). */
+    public static boolean isTainted() {
+        return tainted;
+    }
+
+    /* -------------------------------------------------------
+     * Compilation
+     * ------------------------------------------------------- */
+
+    public static Compilation compile(Path sourceFile, Path sourceRoot) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No system Java compiler available (running on a JRE?)");
+        }
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> options = new ArrayList<>(COMPILER_OPTIONS);
+        options.add("-sourcepath");
+        options.add(sourceRoot.toString());
+
+        try (StandardJavaFileManager std = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8);
+             MemoryFileManager fm = new MemoryFileManager(std)) {
+            Iterable<? extends JavaFileObject> units = std.getJavaFileObjects(sourceFile.toFile());
+            Boolean ok = compiler.getTask(null, fm, diagnostics, options, null, units).call();
+            String messages = formatDiagnostics(diagnostics.getDiagnostics(), sourceRoot);
+            return new Compilation(Boolean.TRUE.equals(ok), messages, fm.classBytes(), fm.sources());
+        }
+    }
+
+    /** Mimics the javac command line layout: "path:line: error: message", source line, caret. */
+    private static String formatDiagnostics(List<Diagnostic<? extends JavaFileObject>> list, Path sourceRoot) {
+        StringBuilder sb = new StringBuilder();
+        int errors = 0, warnings = 0;
+        for (Diagnostic<? extends JavaFileObject> d : list) {
+            String kind = switch (d.getKind()) {
+                case ERROR -> { errors++; yield "error"; }
+                case WARNING, MANDATORY_WARNING -> { warnings++; yield "warning"; }
+                default -> "note";
+            };
+            String where = "";
+            if (d.getSource() != null) {
+                where = relativeName(d.getSource(), sourceRoot);
+                if (d.getLineNumber() != Diagnostic.NOPOS) where += ":" + d.getLineNumber();
+                where += ": ";
+            }
+            sb.append(where).append(kind).append(": ").append(d.getMessage(Locale.getDefault())).append('\n');
+            appendSourceLine(sb, d);
+        }
+        if (errors > 0) sb.append(errors).append(errors == 1 ? " error\n" : " errors\n");
+        if (warnings > 0) sb.append(warnings).append(warnings == 1 ? " warning\n" : " warnings\n");
+        return sb.toString();
+    }
+
+    private static String relativeName(JavaFileObject source, Path sourceRoot) {
+        try {
+            Path p = Path.of(source.toUri());
+            return sourceRoot.toAbsolutePath().normalize().relativize(p.toAbsolutePath().normalize()).toString();
+        } catch (RuntimeException e) {
+            return source.getName();
+        }
+    }
+
+    private static void appendSourceLine(StringBuilder sb, Diagnostic<? extends JavaFileObject> d) {
+        if (d.getSource() == null || d.getLineNumber() == Diagnostic.NOPOS) return;
+        try {
+            CharSequence content = d.getSource().getCharContent(true);
+            String[] lines = content.toString().split("\\R", -1);
+            int idx = (int) d.getLineNumber() - 1;
+            if (idx < 0 || idx >= lines.length) return;
+            sb.append(lines[idx]).append('\n');
+            long col = d.getColumnNumber();
+            if (col != Diagnostic.NOPOS && col > 0) {
+                sb.append(" ".repeat((int) col - 1)).append("^\n");
+            }
+        } catch (IOException ignored) {}
+    }
+
+    /* -------------------------------------------------------
+     * Execution
+     * ------------------------------------------------------- */
+
+    /** Members that would end this JVM if the program called them in-process. */
+    private static final Set<String> EXIT_METHODS = Set.of(
+            "java/lang/System.exit", "java/lang/Runtime.exit", "java/lang/Runtime.halt");
+
+    /** Classes whose file paths the subprocess resolves against the package root (its working directory). */
+    private static final Set<String> FILE_IO_CLASSES = Set.of("java/nio/file/Paths", "java/nio/file/Files");
+    private static final String FILE_IO_CLASS_PREFIX = "java/io/File";
+    private static final String PATH_OF = "java/nio/file/Path.of";
+
+    /** Reflective call sites; combined with an "exit"/"halt" string constant they count as exits. */
+    private static final Set<String> REFLECTIVE_CALLS = Set.of(
+            "java/lang/reflect/Method.invoke",
+            "java/lang/invoke/MethodHandles$Lookup.findStatic",
+            "java/lang/invoke/MethodHandles$Lookup.findVirtual");
+
+    /**
+     * Why the program must not run in this JVM, or null when it may. Checks the constant pool of
+     * every class for method references to System.exit / Runtime.exit / Runtime.halt (however the
+     * Runtime instance was obtained, including method references), for reflective calls next
+     * to an "exit" or "halt" string constant, and for file I/O classes whose relative paths only
+     * resolve against the package root in a subprocess. This keeps an ordinary program from
+     * shutting down the generator or reading the wrong files; it is not a sandbox.
+     */
+    public static String inProcessBlocker(Map<String,byte[]> classes) {
+        for (Map.Entry<String,byte[]> e : classes.entrySet()) {
+            String reason;
+            try {
+                reason = blockingReference(e.getValue());
+            } catch (IOException | RuntimeException ex) {
+                reason = "its class file could not be inspected (" + ex.getMessage() + ")";
+            }
+            if (reason != null) return e.getKey() + " " + reason;
+        }
+        return null;
+    }
+
+    /** Walks the constant pool (JVMS 4.4) of one class file. */
+    private static String blockingReference(byte[] classFile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        if (in.readInt() != 0xCAFEBABE) throw new IOException("bad magic");
+        in.readUnsignedShort(); // minor
+        in.readUnsignedShort(); // major
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count];          // Class -> name index
+        int[] refClass = new int[count];            // Methodref -> class index
+        int[] refNameAndType = new int[count];      // Methodref -> NameAndType index
+        int[] natName = new int[count];             // NameAndType -> name index
+        List<Integer> methodRefs = new ArrayList<>();
+        List<Integer> strings = new ArrayList<>();
+
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[i] = in.readUTF();
+                case 3, 4 -> in.readInt();
+                case 5, 6 -> { in.readLong(); i++; } // 8-byte constants take two slots
+                case 7 -> classNames[i] = in.readUnsignedShort();
+                case 8 -> strings.add(in.readUnsignedShort());
+                case 10, 11 -> {
+                    refClass[i] = in.readUnsignedShort();
+                    refNameAndType[i] = in.readUnsignedShort();
+                    methodRefs.add(i);
+                }
+                case 12 -> {
+                    natName[i] = in.readUnsignedShort();
+                    in.readUnsignedShort();
+                }
+                case 9, 17, 18 -> in.readInt();
+                case 15 -> { in.readUnsignedByte(); in.readUnsignedShort(); }
+                case 16, 19, 20 -> in.readUnsignedShort();
+                default -> throw new IOException("unknown constant pool tag " + tag);
+            }
+        }
+
+        boolean reflective = false;
+        String fileIo = null;
+        for (int ref : methodRefs) {
+            String member = utf8[classNames[refClass[ref]]] + "." + utf8[natName[refNameAndType[ref]]];
+            if (EXIT_METHODS.contains(member)) return "calls " + member.replace('/', '.');
+            if (REFLECTIVE_CALLS.contains(member)) reflective = true;
+            if (PATH_OF.equals(member)) fileIo = member;
+        }
+        for (int nameIndex : classNames) {
+            String name = nameIndex == 0 ? null : utf8[nameIndex];
+            if (name != null && (name.startsWith(FILE_IO_CLASS_PREFIX) || FILE_IO_CLASSES.contains(name))) {
+                fileIo = name;
+                break;
+            }
+        }
+        if (reflective) {
+            for (int idx : strings) {
+                if ("exit".equals(utf8[idx]) || "halt".equals(utf8[idx])) {
+                    return "may call \"" + utf8[idx] + "\" reflectively";
+                }
+            }
+        }
+        if (fileIo != null) {
+            return "uses " + fileIo.replace('/', '.') + " (relative paths resolve against the package root only"
+                    + " in a subprocess)";
+        }
+        return null;
+    }
+
+    /**
+     * Runs main() and captures output into bounded RingBuffers (same Result shape as ProcessRunner).
+     * Like the java launcher, the run ends when main and every non-daemon thread it started have
+     * finished. On timeout the program's threads are interrupted; if they stop within a short
+     * grace period the result is flagged as timed out, otherwise they are abandoned, the JVM is
+     * tainted and null is returned so the caller can re-run the program in a subprocess.
+     */
+    public static ProcessRunner.Result run(Map<String,byte[]> classes, Path packageRoot, String fqcn, byte[] stdin,
+                                           Duration timeout, int maxBytes) throws InterruptedException, IOException {
+        installRoutingStreams();
+        long start = System.nanoTime();
+        RingBuffer out = new RingBuffer(maxBytes);
+        RingBuffer err = new RingBuffer(maxBytes);
+        MemoryClassLoader loader = new MemoryClassLoader(classes, packageRoot);
+        ThreadGroup group = new ThreadGroup("assignment-" + fqcn);
+        int[] exit = {0};
+
+        Thread mainThread = new Thread(group, () -> {
+            CAPTURED_OUT.set(out);
+            CAPTURED_ERR.set(err);
+            CAPTURED_IN.set(new ByteArrayInputStream(stdin == null ? new byte[0] : stdin));
+            try {
+                Class<?> cls = Class.forName(fqcn, true, loader);
+                Method main = cls.getMethod("main", String[].class);
+                if (!Modifier.isStatic(main.getModifiers())) {
+                    System.err.println("Error: main method is not static in class " + fqcn);
+                    exit[0] = 1;
+                    return;
+                }
+                main.setAccessible(true);
+                main.invoke(null, (Object) new String[0]);
+            } catch (ClassNotFoundException | NoClassDefFoundError e) {
+                System.err.println("Error: Could not find or load main class " + fqcn);
+                exit[0] = 1;
+            } catch (NoSuchMethodException e) {
+                System.err.println("Error: Main method not found in class " + fqcn);
+                exit[0] = 1;
+            } catch (InvocationTargetException e) {
+                reportUncaught(e.getCause());
+                exit[0] = 1;
+            } catch (Throwable t) {
+                reportUncaught(t);
+                exit[0] = 1;
+            } finally {
+                System.out.flush();
+                System.err.flush();
+            }
+        }, "main");
+        // Non-daemon like the launcher's main thread: threads the program starts inherit it
+        mainThread.setContextClassLoader(loader);
+        mainThread.setDaemon(false);
+        mainThread.start();
+
+        long deadline = System.nanoTime() + timeout.toNanos();
+        boolean finished = joinUntil(mainThread, deadline) && joinNonDaemonThreads(group, deadline);
+        if (!finished) {
+            group.interrupt();
+            if (!awaitAllThreads(group, System.nanoTime() + STOP_GRACE_MS * 1_000_000)) {
+                abandon(group, fqcn);
+                return null;
+            }
+        }
+        loader.close();
+
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        return new ProcessRunner.Result(out.toString(CONSOLE_CHARSET), err.toString(CONSOLE_CHARSET),
+                finished ? exit[0] : -1, !finished,
+                out.truncated(), err.truncated(), out.totalBytes(), err.totalBytes(), elapsed);
+    }
+
+    private static boolean joinUntil(Thread t, long deadlineNanos) throws InterruptedException {
+        long remainingMs = (deadlineNanos - System.nanoTime()) / 1_000_000;
+        if (remainingMs > 0) t.join(remainingMs);
+        return !t.isAlive();
+    }
+
+    private static void reportUncaught(Throwable t) {
+        // Drop reflection / runner frames so the trace reads like a plain "java Main" launch.
+        StackTraceElement[] st = t.getStackTrace();
+        int keep = st.length;
+        for (int i = 0; i < st.length; i++) {
+            String cn = st[i].getClassName();
+            if (cn.startsWith("jdk.internal.reflect.") || cn.startsWith("java.lang.reflect.")) {
+                keep = i;
+                break;
+            }
+        }
+        t.setStackTrace(Arrays.copyOf(st, keep));
+        System.err.print("Exception in thread \"main\" ");
+        t.printStackTrace(System.err);
+    }
+
+    /** Like the JVM, wait for non-daemon threads the program started before declaring it finished. */
+    private static boolean joinNonDaemonThreads(ThreadGroup group, long deadlineNanos) throws InterruptedException {
+        while (true) {
+            Thread[] threads = new Thread[Math.max(4, group.activeCount() * 2)];
+            int n = group.enumerate(threads, true);
+            Thread pending = null;
+            for (int i = 0; i < n; i++) {
+                if (threads[i].isAlive() && !threads[i].isDaemon()) {
+                    pending = threads[i];
+                    break;
+                }
+            }
+            if (pending == null) return true;
+            if (!joinUntil(pending, deadlineNanos)) return false;
+        }
+    }
+
+    /** Waits for every live thread of the group, daemon or not; false when some outlive the deadline. */
+    private static boolean awaitAllThreads(ThreadGroup group, long deadlineNanos) throws InterruptedException {
+        for (Thread t : liveThreads(group)) {
+            if (!joinUntil(t, deadlineNanos)) return false;
+        }
+        return liveThreads(group).isEmpty();
+    }
+
+    private static List<Thread> liveThreads(ThreadGroup group) {
+        Thread[] threads = new Thread[Math.max(4, group.activeCount() * 2)];
+        int n = group.enumerate(threads, true);
+        List<Thread> live = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            if (threads[i].isAlive()) live.add(threads[i]);
+        }
+        return live;
+    }
+
+    /** Threads that ignored the interrupt keep running; make them cheap and stop using this JVM for runs. */
+    private static void abandon(ThreadGroup group, String fqcn) {
+        for (Thread t : liveThreads(group)) {
+            t.setPriority(Thread.MIN_PRIORITY);
+        }
+        tainted = true;
+        System.out.println("[in-process] " + fqcn + " exceeded the timeout and its threads ignored interruption;"
+                + " they keep running in this JVM, so it is re-run in a subprocess and later runs use one too"
+                + " (restart --watch / --serve to reclaim the CPU).");
+    }
+
+    /* -------------------------------------------------------
+     * Standard stream routing
+     * ------------------------------------------------------- */
+
+    private static synchronized void installRoutingStreams() {
+        if (streamsInstalled) return;
+        PrintStream origOut = System.out;
+        PrintStream origErr = System.err;
+        InputStream origIn = System.in;
+        System.setOut(new PrintStream(new RoutingOutputStream(origOut, CAPTURED_OUT), true, CONSOLE_CHARSET));
+        System.setErr(new PrintStream(new RoutingOutputStream(origErr, CAPTURED_ERR), true, CONSOLE_CHARSET));
+        System.setIn(new RoutingInputStream(origIn));
+        streamsInstalled = true;
+    }
+
+    private static Charset consoleCharset() {
+        String enc = System.getProperty("stdout.encoding", System.getProperty("sun.stdout.encoding"));
+        try {
+            if (enc != null) return Charset.forName(enc);
+        } catch (RuntimeException ignored) {}
+        return Charset.defaultCharset();
+    }
+
+    /** Sends bytes to the calling thread's capture buffer, or to the original stream when none is set. */
+    private static final class RoutingOutputStream extends OutputStream {
+        private final OutputStream fallback;
+        private final InheritableThreadLocal<RingBuffer> target;
+
+        RoutingOutputStream(OutputStream fallback, InheritableThreadLocal<RingBuffer> target) {
+            this.fallback = fallback;
+            this.target = target;
+        }
+
+        @Override public void write(int b) throws IOException {
+            RingBuffer t = target.get();
+            if (t != null) t.write(b); else fallback.write(b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            RingBuffer t = target.get();
+            if (t != null) t.write(b, off, len); else fallback.write(b, off, len);
+        }
+
+        @Override public void flush() throws IOException {
+            if (target.get() == null) fallback.flush();
+        }
+    }
+
+    private static final class RoutingInputStream extends InputStream {
+        private final InputStream fallback;
+
+        RoutingInputStream(InputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        private InputStream current() {
+            InputStream in = CAPTURED_IN.get();
+            return in != null ? in : fallback;
+        }
+
+        @Override public int read() throws IOException { return current().read(); }
+        @Override public int read(byte[] b, int off, int len) throws IOException { return current().read(b, off, len); }
+        @Override public int available() throws IOException { return current().available(); }
+    }
+
+    /* -------------------------------------------------------
+     * In-memory file manager + class loader
+     * ------------------------------------------------------- */
+
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String,ByteArrayOutputStream> outputs = new LinkedHashMap<>();
+        private final Set<Path> sources = new TreeSet<>();
+
+        MemoryFileManager(StandardJavaFileManager delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            if (sibling != null && "file".equalsIgnoreCase(sibling.toUri().getScheme())) {
+                sources.add(Path.of(sibling.toUri()).toAbsolutePath().normalize());
+            }
+            URI uri = URI.create("mem:///" + className.replace('.', '/') + kind.extension);
+            return new SimpleJavaFileObject(uri, kind) {
+                @Override public OutputStream openOutputStream() {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    outputs.put(className, bos);
+                    return bos;
+                }
+            };
+        }
+
+        Map<String,byte[]> classBytes() {
+            Map<String,byte[]> m = new TreeMap<>();
+            outputs.forEach((k, v) -> m.put(k, v.toByteArray()));
+            return m;
+        }
+
+        Set<Path> sources() {
+            return Collections.unmodifiableSet(sources);
+        }
+    }
+
+    /**
+     * Compiled classes first, then the package root (the subprocess classpath is "classesDir:.").
+     * Classes from the root are defined by this loader too, so they link against the fresh classes.
+     */
+    private static final class MemoryClassLoader extends ClassLoader implements Closeable {
+        private final Map<String,byte[]> classes;
+        private final URLClassLoader packageRoot;
+
+        MemoryClassLoader(Map<String,byte[]> classes, Path packageRoot) throws IOException {
+            super("assignment", ClassLoader.getPlatformClassLoader());
+            this.classes = classes;
+            this.packageRoot = new URLClassLoader(new URL[] { packageRoot.toUri().toURL() }, null);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] b = classes.get(name);
+            if (b == null) b = rootClassBytes(name);
+            if (b == null) throw new ClassNotFoundException(name);
+            return defineClass(name, b, 0, b.length);
+        }
+
+        private byte[] rootClassBytes(String name) {
+            URL url = packageRoot.findResource(name.replace('.', '/') + ".class");
+            if (url == null) return null;
+            try (InputStream in = url.openStream()) {
+                return in.readAllBytes();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected URL findResource(String name) {
+            return packageRoot.findResource(name);
+        }
+
+        @Override
+        protected Enumeration<URL> findResources(String name) throws IOException {
+            return packageRoot.findResources(name);
+        }
+
+        @Override
+        public void close() throws IOException {
+            packageRoot.close();
+        }
+    }
+}
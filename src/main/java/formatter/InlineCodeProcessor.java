@@ -2,73 +2,204 @@
 
 package formatter;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 /**
  * Minimal inline code processor (still optional in your pipeline).
+ *
+ * One left-to-right pass over the prose recognizes all three constructs:
+ *  - ```fenced``` blocks   -> <pre> (one trailing newline dropped)
+ *  - `single backticks`    -> inline <code> (trimmed)
+ *  - <code>plain</code>    -> styled inline <code> (trimmed; content without '<')
+ *
+ * The output is byte-identical to the former chain of three regex passes (fences, then single
+ * backticks, then code tags) except in two cases where that chain re-scanned its own output:
+ *  - backticks inside a fence were turned into <code> within the generated <pre>; fence
+ *    contents are now emitted once, verbatim (escaped);
+ *  - a stray backtick before a fence could pair with one after it, wrapping the generated <pre>
+ *    markup, escaped, in a <code> span; a fence now ends any span search.
+ * Both only arise when a closed fence leaves a backtick behind. InlineCodeProcessorTest checks
+ * everything else against the old regex chain.
+ *
+ * All forward searches (next backtick, next fence) go through {@link Finder}, which remembers
+ * its last answer, so the pass stays linear even with many <code> tags and few backticks.
+ *
+ * The same pass notes whether the result contains block-level HTML (a generated <pre>, or a
+ * block tag such as <div> / <ul> in the literal prose), so callers choosing between <p> and
+ * <div> wrappers do not need to scan the section again.
  */
 public class InlineCodeProcessor {
 
-    private static final Pattern BACKTICK_PATTERN = Pattern.compile("`([^`]+)`");
-    private static final Pattern CODE_TAG_PATTERN = Pattern.compile("<code>([^<]+)</code>");
-    private static final Pattern TRIPLE_BACKTICK_PATTERN = Pattern.compile("```([\\s\\S]*?)```");
+    private static final String INLINE_CODE_OPEN =
+            "<code style=\"background:#f1f1f1;padding:2px 4px;border-radius:3px; font-family:'Courier New',monospace;\">";
+    private static final String FENCE_OPEN =
+            "<pre style=\"background:#f5f5f5;padding:1em;border:1px solid #ccc;overflow:auto; font-family:'Courier New',monospace;\">";
+    private static final String FENCE = "```";
+    private static final String CODE_TAG = "<code>";
+    private static final String CODE_TAG_CLOSE = "</code>";
+
+    /** Block-level tag names (lower case) that may not be nested inside <p>. */
+    private static final Set<String> BLOCK_TAGS = Set.of(
+            "div", "p", "h1", "h2", "h3", "h4", "h5", "h6", "ul", "ol", "li", "pre",
+            "section", "article", "header", "footer", "nav", "table", "thead", "tbody",
+            "tr", "td", "th", "blockquote", "figure", "figcaption");
+    private static final int LONGEST_BLOCK_TAG = "blockquote".length();
+
+    /** Processed prose plus whether it contains block-level HTML. */
+    public record Processed(String html, boolean containsBlockHtml) {}
 
     public static String process(String prose) {
-        if (prose == null || prose.isEmpty()) return "";
-        String result = processTripleBackticks(prose);
-        result = processBackticks(result);
-        result = processCodeTags(result);
-        return result;
+        return processDetailed(prose).html();
+    }
+
+    public static Processed processDetailed(String prose) {
+        if (prose == null || prose.isEmpty()) return new Processed("", false);
+        final int n = prose.length();
+        Finder ticks = new Finder(prose, "`");
+        Finder fences = new Finder(prose, FENCE);
+        StringBuilder out = new StringBuilder(n + 64);
+        boolean blockHtml = false;
+        int run = 0; // start of pending literal text
+        int i = 0;
+
+        while (i < n) {
+            char c = prose.charAt(i);
+
+            if (c == '`') {
+                // Fenced block
+                int fenceEnd = fenceClose(prose, fences, i);
+                if (fenceEnd >= 0) {
+                    out.append(prose, run, i);
+                    int end = fenceEnd;
+                    if (end > i + 3 && prose.charAt(end - 1) == '\n') end--;
+                    out.append(FENCE_OPEN);
+                    HtmlEscaper.appendEscaped(out, prose, i + 3, end);
+                    out.append("</pre>");
+                    blockHtml = true;
+                    i = run = fenceEnd + 3;
+                    continue;
+                }
+                // Single backticks: partner is the next backtick; content must be non-empty
+                int close = ticks.next(i + 1);
+                if (close > i + 1 && fenceClose(prose, fences, close) < 0) {
+                    out.append(prose, run, i);
+                    appendInlineCode(out, prose, i + 1, close);
+                    i = run = close + 1;
+                    continue;
+                }
+                i++;
+                continue;
+            }
+
+            if (c == '<' && prose.startsWith(CODE_TAG, i)) {
+                int start = i + CODE_TAG.length();
+                int end = start;
+                while (end < n && prose.charAt(end) != '<') end++;
+                if (end > start && prose.startsWith(CODE_TAG_CLOSE, end) && backticksInert(prose, ticks, fences, start, end)) {
+                    out.append(prose, run, i);
+                    appendInlineCode(out, prose, start, end);
+                    i = run = end + CODE_TAG_CLOSE.length();
+                    continue;
+                }
+            }
+            if (c == '<' && !blockHtml) {
+                blockHtml = isBlockTagAt(prose, i);
+            }
+            i++;
+        }
+
+        if (run == 0) return new Processed(prose, blockHtml);
+        out.append(prose, run, n);
+        return new Processed(out.toString(), blockHtml);
     }
 
-    private static String processBackticks(String text) {
-        Matcher m = BACKTICK_PATTERN.matcher(text);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String code = escapeHtml(m.group(1).trim());
-            String replacement = "<code style=\"background:#f1f1f1;padding:2px 4px;border-radius:3px; font-family:'Courier New',monospace;\">" + code + "</code>";
-            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+    /**
+     * Linear scan for an opening block-level tag: '<', optional whitespace, a block tag name,
+     * then a word boundary (same matches as the former
+     * "(?is).*<\\s*(div|p|h[1-6]|...)\\b.*" regex, without its backtracking).
+     */
+    public static boolean containsBlockHtml(CharSequence html) {
+        if (html == null) return false;
+        for (int i = 0; i < html.length(); i++) {
+            if (html.charAt(i) == '<' && isBlockTagAt(html, i)) return true;
         }
-        m.appendTail(sb);
-        return sb.toString();
+        return false;
     }
 
-    private static String processCodeTags(String text) {
-        Matcher m = CODE_TAG_PATTERN.matcher(text);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String code = escapeHtml(m.group(1).trim());
-            String replacement = "<code style=\"background:#f1f1f1;padding:2px 4px;border-radius:3px; font-family:'Courier New',monospace;\">" + code + "</code>";
-            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+    private static boolean isBlockTagAt(CharSequence s, int lt) {
+        final int n = s.length();
+        int p = lt + 1;
+        while (p < n && isRegexSpace(s.charAt(p))) p++;
+        int start = p;
+        while (p < n && isWordChar(s.charAt(p))) {
+            if (p - start >= LONGEST_BLOCK_TAG) return false;
+            p++;
+        }
+        if (p == start) return false;
+        char[] name = new char[p - start];
+        for (int k = 0; k < name.length; k++) {
+            char ch = s.charAt(start + k);
+            name[k] = (ch >= 'A' && ch <= 'Z') ? (char) (ch + ('a' - 'A')) : ch;
         }
-        m.appendTail(sb);
-        return sb.toString();
+        return BLOCK_TAGS.contains(new String(name));
     }
 
-    private static String processTripleBackticks(String text) {
-        Matcher m = TRIPLE_BACKTICK_PATTERN.matcher(text);
-        StringBuffer sb = new StringBuffer();
-        while (m.find()) {
-            String code = escapeHtml(stripTrailingNewline(m.group(1)));
-            String replacement = "<pre style=\"background:#f5f5f5;padding:1em;border:1px solid #ccc;overflow:auto; font-family:'Courier New',monospace;\">" + code + "</pre>";
-            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /** Word characters as seen by \\b (letters, digits, underscore). */
+    private static boolean isWordChar(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    /** Index of the closing ``` for a fence opening at i, or -1 when i does not open a closed fence. */
+    private static int fenceClose(String text, Finder fences, int i) {
+        if (!text.startsWith(FENCE, i)) return -1;
+        return fences.next(i + 3);
+    }
+
+    /** True when no backtick in text[start, end) would open a fence or a backtick span. */
+    private static boolean backticksInert(String text, Finder ticks, Finder fences, int start, int end) {
+        for (int k = ticks.next(start); k >= 0 && k < end; k = ticks.next(k + 1)) {
+            if (fenceClose(text, fences, k) >= 0) return false;
+            int close = ticks.next(k + 1);
+            if (close > k + 1 && fenceClose(text, fences, close) < 0) return false;
         }
-        m.appendTail(sb);
-        return sb.toString();
+        return true;
     }
 
-    private static String stripTrailingNewline(String s) {
-        if (s == null) return "";
-        return s.endsWith("\n") ? s.substring(0, s.length() - 1) : s;
+    /**
+     * indexOf that remembers its last answer: a query from any position between the previous
+     * start and the match found for it returns that match without searching again. The scan
+     * only moves forward, so each stretch of text is searched about once.
+     */
+    private static final class Finder {
+        private final String text;
+        private final String needle;
+        private int from = Integer.MAX_VALUE;
+        private int found;
+
+        Finder(String text, String needle) {
+            this.text = text;
+            this.needle = needle;
+        }
+
+        int next(int pos) {
+            if (pos < from || (found >= 0 && pos > found)) {
+                from = pos;
+                found = text.indexOf(needle, pos);
+            }
+            return found;
+        }
     }
 
-    private static String escapeHtml(String s) {
-        if (s == null) return "";
-        return s.replace("&","&amp;")
-                .replace("<","&lt;")
-                .replace(">","&gt;")
-                .replace("\"","&quot;")
-                .replace("'","&#39;");
+    /** Appends text[start, end) trimmed and escaped inside a styled inline code tag. */
+    private static void appendInlineCode(StringBuilder out, String text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') start++;
+        while (end > start && text.charAt(end - 1) <= ' ') end--;
+        out.append(INLINE_CODE_OPEN);
+        HtmlEscaper.appendEscaped(out, text, start, end);
+        out.append("</code>");
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+// Current filename: OutputCache.java
+
+package formatter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Opt-in memo of program output for deterministic assignments.
+ *
+ * Key: SHA-256 over the compiled class bytes (sorted by class name), the stdin bytes and the
+ * settings that shape the formatted text (execution path, timeout, output limit), so any
+ * change to the program, its input or those limits produces a new entry. On a hit the
+ * execution step is skipped entirely. Runs whose output hit max_output_kb are not stored.
+ *
+ * Layout: <cache_dir>/output/<key>.txt (the formatted ExecutionResult.programOutput), evicted
+ * like the compile cache (see DiskLruCache).
+ *
+ * Config keys:
+ *   cache_program_output       = true | false   (default false)
+ *   output_cache_max_mb        = integer        (default 16)
+ *   program_input_file_address = file fed to the program's stdin (optional)
+ */
+public final class OutputCache extends DiskLruCache {
+
+    private OutputCache(Path dir) {
+        super(dir, ".txt", "Output cache");
+    }
+
+    /** One instance per cache directory; maxBytes replaces the size bound of an existing instance. */
+    public static OutputCache open(Path dir, long maxBytes) {
+        return open(dir, maxBytes, OutputCache.class, OutputCache::new);
+    }
+
+    /** Returns null unless cache_program_output = true. */
+    public static OutputCache forConfig(Config config) {
+        String flag = config.get("cache_program_output");
+        if (flag == null || !flag.trim().equalsIgnoreCase("true")) return null;
+        long maxMb = Utils.positiveInt(config.get("output_cache_max_mb"), 16);
+        return open(CompilationCache.cacheRoot(config).resolve("output"), maxMb * 1024 * 1024);
+    }
+
+    /** mode is the path that runs the program (in-process runs can still fall back to a subprocess). */
+    public static String key(Map<String,byte[]> classes, Utils.ExecutionMode mode, Utils.ExecutionOptions options) {
+        MessageDigest md = ContentHash.newDigest();
+        for (Map.Entry<String,byte[]> e : new TreeMap<>(classes).entrySet()) {
+            ContentHash.update(md, e.getKey());
+            md.update(e.getValue());
+        }
+        ContentHash.update(md, "stdin");
+        if (options.stdin() != null) md.update(options.stdin());
+        ContentHash.update(md, "mode=" + mode);
+        ContentHash.update(md, "timeout=" + options.timeout().toMillis());
+        ContentHash.update(md, "max_output=" + options.maxOutputBytes());
+        return ContentHash.hex(md.digest());
+    }
+
+    /** Cached program output, or null on a miss. */
+    public String get(String key) {
+        Path p = entry(key);
+        if (Files.isRegularFile(p)) {
+            try {
+                String output = Files.readString(p, StandardCharsets.UTF_8);
+                touch(p);
+                hit();
+                return output;
+            } catch (IOException e) {
+                // evicted / replaced concurrently: treat as miss
+            }
+        }
+        miss();
+        return null;
+    }
+
+    public void put(String key, String programOutput) {
+        try {
+            store(key, out -> out.write(programOutput.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.out.println("Output cache write failed: " + e.getMessage());
+        }
+    }
+}
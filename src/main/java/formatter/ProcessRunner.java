@@ -0,0 +1,107 @@
+// Current filename: ProcessRunner.java
+
+package formatter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared child-process I/O used for javac / java / tidy.
+ *
+ *  - stdin is written, and stdout / stderr are drained, on three separate daemon threads,
+ *    so a child that fills one pipe while we wait on another can no longer deadlock us.
+ *  - Each stream is captured into a RingBuffer (bounded; keeps the tail).
+ *  - A wall-clock timeout kills the whole process tree (descendants first).
+ *
+ * (Java 17 target: platform daemon threads are used where virtual threads would be on 21+.)
+ */
+public final class ProcessRunner {
+
+    private ProcessRunner() {}
+
+    public record Result(String stdout,
+                         String stderr,
+                         int exitCode,
+                         boolean timedOut,
+                         boolean stdoutTruncated,
+                         boolean stderrTruncated,
+                         long stdoutBytes,
+                         long stderrBytes,
+                         long elapsedMillis) {
+
+        public boolean truncated() {
+            return stdoutTruncated || stderrTruncated;
+        }
+    }
+
+    /**
+     * @param stdin         bytes written to the child's stdin before it is closed (null = empty)
+     * @param timeout       wall-clock limit; the process tree is killed when exceeded
+     * @param maxBytes      capture limit per stream
+     */
+    public static Result run(ProcessBuilder pb, byte[] stdin, Duration timeout, int maxBytes, Charset cs)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process proc = pb.start();
+
+        RingBuffer out = new RingBuffer(maxBytes);
+        RingBuffer err = new RingBuffer(maxBytes);
+        Thread outPump = pump(proc.getInputStream(), out, "stdout-" + proc.pid());
+        Thread errPump = pump(proc.getErrorStream(), err, "stderr-" + proc.pid());
+        Thread inFeed = feed(proc.getOutputStream(), stdin, "stdin-" + proc.pid());
+
+        boolean finished = proc.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        if (!finished) {
+            destroyTree(proc);
+            proc.waitFor(5, TimeUnit.SECONDS);
+        }
+        // Pipes close once the tree is gone; bounded join guards against orphaned grandchildren.
+        outPump.join(2_000);
+        errPump.join(2_000);
+        inFeed.join(2_000);
+
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        int exit = finished ? proc.exitValue() : -1;
+        return new Result(out.toString(cs), err.toString(cs), exit, !finished,
+                out.truncated(), err.truncated(), out.totalBytes(), err.totalBytes(), elapsed);
+    }
+
+    public static void destroyTree(Process proc) {
+        proc.descendants().forEach(ProcessHandle::destroyForcibly);
+        proc.destroyForcibly();
+    }
+
+    private static Thread pump(InputStream in, RingBuffer sink, String name) {
+        Thread t = new Thread(() -> {
+            byte[] chunk = new byte[8192];
+            try (in) {
+                int n;
+                while ((n = in.read(chunk)) > 0) {
+                    sink.write(chunk, 0, n);
+                }
+            } catch (IOException ignored) {
+                // stream closed by process death
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static Thread feed(OutputStream os, byte[] data, String name) {
+        Thread t = new Thread(() -> {
+            try (os) {
+                if (data != null) os.write(data);
+            } catch (IOException ignored) {
+                // child exited without reading all of stdin
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,88 @@
+// Current filename: RingBuffer.java
+
+package formatter;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Bounded byte sink that keeps the LAST capacity bytes written.
+ * Used to capture child-process and in-process program output without unbounded growth:
+ * capacity is a limit, not an expected size, so the array starts small and doubles as output
+ * arrives; once it reaches capacity the oldest bytes are overwritten and the buffer reports
+ * itself as truncated.
+ *
+ * Thread-safe (a program may write from several threads).
+ */
+public final class RingBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 4 * 1024;
+
+    private final int capacity;
+    private byte[] buf;        // shorter than capacity only while nothing was overwritten (next == total)
+    private int next;          // index of the next write
+    private long total;        // bytes ever written
+
+    public RingBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.buf = new byte[Math.min(this.capacity, INITIAL_SIZE)];
+    }
+
+    /** Grows a not-yet-full buffer so len more bytes fit without wrapping (or up to capacity). */
+    private void ensureRoom(int len) {
+        if (buf.length == capacity) return;
+        long needed = total + len;
+        if (needed < buf.length) return;
+        int size = buf.length;
+        while (size <= needed && size < capacity) {
+            size = (int) Math.min(capacity, size * 2L);
+        }
+        buf = Arrays.copyOf(buf, size);
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureRoom(1);
+        buf[next] = (byte) b;
+        next = (next + 1) % buf.length;
+        total++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        ensureRoom(len);
+        total += len;
+        if (len >= buf.length) {
+            // Only the tail survives
+            System.arraycopy(b, off + len - buf.length, buf, 0, buf.length);
+            next = 0;
+            return;
+        }
+        int first = Math.min(len, buf.length - next);
+        System.arraycopy(b, off, buf, next, first);
+        System.arraycopy(b, off + first, buf, 0, len - first);
+        next = (next + len) % buf.length;
+    }
+
+    public synchronized long totalBytes() {
+        return total;
+    }
+
+    public synchronized boolean truncated() {
+        return total > capacity;
+    }
+
+    /** Decodes the retained bytes; when truncated, a partial leading UTF-8 sequence is dropped. */
+    public synchronized String toString(Charset cs) {
+        if (!truncated()) {
+            return new String(buf, 0, (int) total, cs);
+        }
+        byte[] ordered = new byte[buf.length];
+        System.arraycopy(buf, next, ordered, 0, buf.length - next);
+        System.arraycopy(buf, 0, ordered, buf.length - next, next);
+        int start = 0;
+        while (start < ordered.length && start < 3 && (ordered[start] & 0xC0) == 0x80) start++;
+        return new String(ordered, start, ordered.length - start, cs);
+    }
+}
@@ -0,0 +1,143 @@
+// Current filename: SectionCache.java
+
+package formatter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Cache of rendered section fragments (heading + body HTML), so a post whose explanation
+ * changed re-renders that one section and splices the others back from the cache.
+ *
+ * Key: SHA-256 of (renderer version, section id, theme fingerprint, toggle state, section
+ * content). Sections that do not depend on the theme pass an empty theme fingerprint, so
+ * switching themes only re-highlights the code listing. Sections fed by this run's
+ * compile/run step are not cached here (CompilationCache / OutputCache cover those).
+ *
+ * Two levels: an in-memory LRU bounded by characters (useful when one JVM renders the same
+ * unit repeatedly), in front of <cache_dir>/sections/<key>.html, evicted like the compile
+ * cache (see DiskLruCache).
+ *
+ * Config keys:
+ *   section_cache        = true | false   (default true)
+ *   section_cache_max_mb = integer        (default 16)
+ */
+public final class SectionCache extends DiskLruCache {
+
+    /** Bump when the markup produced for a section changes, so old fragments stop matching. */
+    private static final String RENDERER_VERSION = "sections v1";
+    private static final long MEMORY_MAX_CHARS = 8L * 1024 * 1024;
+
+    private final LinkedHashMap<String,String> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryChars;
+
+    private SectionCache(Path dir) {
+        super(dir, ".html", "Section cache");
+    }
+
+    /**
+     * One instance per cache directory, so the in-memory level and counters are process-wide;
+     * maxBytes replaces the size bound of an existing instance.
+     */
+    public static SectionCache open(Path dir, long maxBytes) {
+        return open(dir, maxBytes, SectionCache.class, SectionCache::new);
+    }
+
+    /** Returns null when section_cache = false. */
+    public static SectionCache forConfig(Config config) {
+        String flag = config.get("section_cache");
+        if (flag != null && flag.trim().equalsIgnoreCase("false")) return null;
+        long maxMb = Utils.positiveInt(config.get("section_cache_max_mb"), 16);
+        return open(CompilationCache.cacheRoot(config).resolve("sections"), maxMb * 1024 * 1024);
+    }
+
+    /** Theme name plus the hash of its JSON file ("builtin" when the built-in palette is used). */
+    public static String themeFingerprint(String themeName, Path baseDir) {
+        if (themeName == null) return "";
+        Path json = ThemeLoader.locate(themeName, baseDir);
+        if (json == null) return themeName + ":builtin";
+        try {
+            return themeName + ":" + ContentHash.sha256(json);
+        } catch (IOException e) {
+            return themeName + ":unreadable";
+        }
+    }
+
+    /* -------------------------------------------------------
+     * Lookup / store
+     * ------------------------------------------------------- */
+
+    /**
+     * Cached fragment for the section, or renderer.get() (stored for next time).
+     * toggles describes every option that changes the markup (e.g. "italic,pre").
+     */
+    public String fragment(String sectionId, String theme, String toggles, String content,
+                           Supplier<String> renderer) {
+        String key = keyFor(sectionId, theme, toggles, content);
+
+        String cached;
+        synchronized (memory) {
+            cached = memory.get(key);
+        }
+        if (cached == null) {
+            cached = readDisk(key);
+            if (cached != null) remember(key, cached);
+        }
+        if (cached != null) {
+            hit();
+            return cached;
+        }
+
+        miss();
+        String fresh = renderer.get();
+        remember(key, fresh);
+        try {
+            store(key, out -> out.write(fresh.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            System.out.println("Section cache write failed: " + e.getMessage());
+        }
+        return fresh;
+    }
+
+    private static String keyFor(String sectionId, String theme, String toggles, String content) {
+        MessageDigest md = ContentHash.newDigest();
+        ContentHash.update(md, RENDERER_VERSION);
+        ContentHash.update(md, sectionId);
+        ContentHash.update(md, theme);
+        ContentHash.update(md, toggles);
+        ContentHash.update(md, content);
+        return ContentHash.hex(md.digest());
+    }
+
+    private void remember(String key, String html) {
+        if (html.length() > MEMORY_MAX_CHARS / 4) return;
+        synchronized (memory) {
+            String previous = memory.put(key, html);
+            if (previous != null) memoryChars -= previous.length();
+            memoryChars += html.length();
+            Iterator<String> it = memory.values().iterator();
+            while (memoryChars > MEMORY_MAX_CHARS && it.hasNext()) {
+                memoryChars -= it.next().length();
+                it.remove();
+            }
+        }
+    }
+
+    private String readDisk(String key) {
+        Path entry = entry(key);
+        if (!Files.isRegularFile(entry)) return null;
+        try {
+            String html = Files.readString(entry, StandardCharsets.UTF_8);
+            touch(entry);
+            return html;
+        } catch (IOException e) {
+            return null; // evicted / replaced concurrently: treat as miss
+        }
+    }
+}
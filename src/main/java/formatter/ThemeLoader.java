@@ -5,7 +5,10 @@ package formatter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Minimal, dependency-free loader for the constrained JSON structure used by theme files.
@@ -13,38 +16,129 @@ import java.util.*;
  *
  * Added: listAvailableThemeNames() - scans the 'themes' directory for *.json files
  * and returns their theme names (prefers the internal "name" field from JSON if present).
+ *
+ * Parsed themes live in a registry invalidated by file mtime/size, so repeated load()
+ * calls (one per highlighted snippet) cost a stat, not a read + parse.
  */
 public final class ThemeLoader {
 
     private ThemeLoader() {}
 
     /**
-     * Load a theme by name from themes/<themeName>.json
+     * Process-wide theme registry: each themes/*.json file is parsed once and reused until
+     * its modification time or size changes. Keyed by absolute file path, so every config
+     * (and every Highlighter call) in this JVM shares it.
+     */
+    private static final Map<Path,Entry> REGISTRY = new ConcurrentHashMap<>();
+
+    /** theme == null means the file failed to parse (name then comes from a lenient scan, if any). */
+    private record Entry(FileTime modified, long size, Theme theme, String name) {
+        boolean isCurrent(BasicFileAttributes attrs) {
+            return size == attrs.size() && modified.equals(attrs.lastModifiedTime());
+        }
+    }
+
+    /**
+     * Load a theme by name from themes/<themeName>.json (relative to the working directory).
      */
     public static Theme load(String themeName) {
+        return load(themeName, null);
+    }
+
+    /**
+     * Load a theme by name, looking in <baseDir>/themes first (baseDir is normally the
+     * config directory) and then in themes/ under the working directory.
+     */
+    public static Theme load(String themeName, Path baseDir) {
         if (themeName == null || themeName.isBlank()) {
             return null;
         }
-        Path path = Path.of("themes", themeName + ".json");
-        if (!Files.isRegularFile(path)) {
+        Path path = locate(themeName, baseDir);
+        if (path == null) {
             return null;
         }
         try {
-            String json = Files.readString(path, StandardCharsets.UTF_8);
-            return parseTheme(json);
+            return entryFor(path).theme();
         } catch (IOException e) {
             System.out.println("Failed to read theme file: " + e.getMessage());
             return null;
+        }
+    }
+
+    /**
+     * All parsed themes visible from baseDir (baseDir/themes, then ./themes), keyed by file
+     * name without extension. Files that fail to parse are omitted.
+     */
+    public static Map<String,Theme> loadAll(Path baseDir) {
+        Map<String,Theme> out = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        List<Path> dirs = new ArrayList<>();
+        if (baseDir != null) dirs.add(baseDir.resolve("themes"));
+        dirs.add(Path.of("themes"));
+        for (Path dir : dirs) {
+            for (Path p : jsonFiles(dir)) {
+                try {
+                    Theme t = entryFor(p).theme();
+                    if (t != null) out.putIfAbsent(stripExt(p.getFileName().toString()), t);
+                } catch (IOException ignored) {
+                    // vanished between listing and reading
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Theme JSON that load(themeName, baseDir) would read, or null for the built-in palette. */
+    static Path locate(String themeName, Path baseDir) {
+        if (baseDir != null) {
+            Path p = baseDir.resolve("themes").resolve(themeName + ".json");
+            if (Files.isRegularFile(p)) return p.toAbsolutePath().normalize();
+        }
+        Path p = Path.of("themes", themeName + ".json");
+        return Files.isRegularFile(p) ? p.toAbsolutePath().normalize() : null;
+    }
+
+    /** Registry lookup: stat the file, re-read and re-parse only when mtime or size changed. */
+    private static Entry entryFor(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        Entry cached = REGISTRY.get(key);
+        if (cached != null && cached.isCurrent(attrs)) {
+            return cached;
+        }
+        String json = Files.readString(key, StandardCharsets.UTF_8);
+        Theme theme = null;
+        String name = null;
+        try {
+            theme = parseTheme(json);
+            name = theme.getName();
         } catch (RuntimeException e) {
             System.out.println("Failed to parse theme file: " + e.getMessage());
-            return null;
+            try {
+                name = extractString(json, "\"name\"");
+            } catch (RuntimeException ignored) {
+                // fall back to the filename
+            }
+        }
+        Entry fresh = new Entry(attrs.lastModifiedTime(), attrs.size(), theme, name);
+        REGISTRY.put(key, fresh);
+        return fresh;
+    }
+
+    private static List<Path> jsonFiles(Path dir) {
+        if (!Files.isDirectory(dir)) return List.of();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.json")) {
+            for (Path p : ds) files.add(p);
+        } catch (IOException e) {
+            System.out.println("Theme directory scan failed: " + e.getMessage());
         }
+        return files;
     }
 
     /**
      * Scan the themes directory for *.json files and return a list of theme names.
      * For each file:
-     *  - Try to parse it to obtain its internal "name"
+     *  - Use the registry entry to obtain its internal "name"
      *  - If parsing fails or "name" missing, fall back to the filename (without extension)
      *
      * Order: alphabetical by theme name (case-insensitive).
@@ -56,29 +150,18 @@ public final class ThemeLoader {
         }
 
         List<String> names = new ArrayList<>();
-        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.json")) {
-            for (Path p : ds) {
-                String baseName = stripExt(p.getFileName().toString());
-                String json;
-                try {
-                    json = Files.readString(p, StandardCharsets.UTF_8);
-                } catch (IOException ioe) {
-                    System.out.println("Skipping unreadable theme file: " + p + " (" + ioe.getMessage() + ")");
-                    continue;
-                }
-                String parsedName = null;
-                try {
-                    parsedName = extractString(json, "\"name\"");
-                } catch (Exception ignored) {
-                    // Ignore parsing errors for name field; fallback to filename
-                }
-                if (parsedName == null || parsedName.isBlank()) {
-                    parsedName = baseName;
-                }
-                names.add(parsedName);
+        for (Path p : jsonFiles(dir)) {
+            String parsedName;
+            try {
+                parsedName = entryFor(p).name();
+            } catch (IOException ioe) {
+                System.out.println("Skipping unreadable theme file: " + p + " (" + ioe.getMessage() + ")");
+                continue;
             }
-        } catch (IOException e) {
-            System.out.println("Theme directory scan failed: " + e.getMessage());
+            if (parsedName == null || parsedName.isBlank()) {
+                parsedName = stripExt(p.getFileName().toString());
+            }
+            names.add(parsedName);
         }
 
         // Sort case-insensitively for consistent menu ordering
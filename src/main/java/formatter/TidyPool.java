@@ -0,0 +1,247 @@
+// Current filename: TidyPool.java
+
+package formatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Shared runner for the external HTML Tidy process.
+ *
+ *  - The tidy executable is resolved from PATH once per JVM, not per document, and run by its
+ *    absolute path, so a later PATH or working-directory change cannot swap it.
+ *  - At most tidy_max_concurrency tidy processes run at once (default: CPU count); batch and
+ *    workspace workers queue on one process-wide semaphore instead of forking without limit.
+ *    It is sized by the first config that runs tidy and never replaced, so configs with
+ *    different limits in workspace mode still share a single bound.
+ *  - Each call has its own timeout (tidy_timeout_seconds, default 30) and kills the process
+ *    tree when exceeded (ProcessRunner).
+ *  - Successful results are memoized by SHA-256 of the raw HTML in a bounded in-memory LRU,
+ *    so an unchanged document is never re-tidied in the same JVM; identical documents submitted
+ *    concurrently share one tidy run.
+ *
+ * Tidy reads the whole document from stdin and exits, so there is no long-lived worker to
+ * keep warm; the pool bounds and reuses everything around the fork instead.
+ */
+public final class TidyPool {
+
+    private TidyPool() {}
+
+    public record Result(String output, String stderr, int exitCode) {}
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+    /** Output cap: a multiple of the input (indentation adds to it), at least MIN, at most MAX. */
+    private static final int MIN_OUTPUT_BYTES = 1024 * 1024;
+    private static final int MAX_OUTPUT_BYTES = 64 * 1024 * 1024;
+    private static final long MEMO_MAX_CHARS = 32L * 1024 * 1024;
+
+    private static final List<String> TIDY_ARGS = List.of(
+            "-quiet",
+            "-indent",
+            "-wrap", "120",
+            "--indent-spaces", "2",
+            "--vertical-space", "yes",
+            "--tidy-mark", "no",
+            "--drop-empty-elements", "no",
+            "--preserve-entities", "yes",
+            // Ensure HTML5 parsing so modern sectioning tags are preserved
+            "--doctype", "html5",
+            // Be explicit about HTML5 sectioning elements as block-level
+            "--new-blocklevel-tags", "main,section,article,header,footer,nav"
+    );
+
+    private static volatile Optional<String> executable;
+
+    private static Semaphore permits;
+
+    /** Access-ordered LRU of successful results, bounded by total characters held. */
+    private static final LinkedHashMap<String, Result> MEMO = new LinkedHashMap<>(64, 0.75f, true);
+    private static long memoChars;
+    private static long memoHits;
+
+    /** Runs in progress, so concurrent callers with the same document wait for one result. */
+    private static final ConcurrentHashMap<String, CompletableFuture<Result>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    /** Absolute path of tidy / tidy.exe found on PATH, or null. Resolved once per JVM. */
+    public static String executable() {
+        Optional<String> exe = executable;
+        if (exe == null) {
+            synchronized (TidyPool.class) {
+                if (executable == null) {
+                    executable = Optional.ofNullable(findTidyExecutable());
+                }
+                exe = executable;
+            }
+        }
+        return exe.orElse(null);
+    }
+
+    /**
+     * Tidies html with the external executable (memoized). Returns null output when tidy failed,
+     * timed out or produced nothing; stderr is kept for diagnostics either way.
+     */
+    public static Result tidy(Config config, String html) throws IOException, InterruptedException {
+        String exe = executable();
+        if (exe == null) {
+            return new Result(null, "tidy executable not found on PATH", -1);
+        }
+        String key = memoKey(exe, html);
+        synchronized (MEMO) {
+            Result hit = MEMO.get(key);
+            if (hit != null) {
+                memoHits++;
+                return hit;
+            }
+        }
+
+        CompletableFuture<Result> mine = new CompletableFuture<>();
+        CompletableFuture<Result> running = IN_FLIGHT.putIfAbsent(key, mine);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            Semaphore sem = permits(maxConcurrency(config));
+            sem.acquire();
+            Result result;
+            try {
+                result = runTidy(exe, html, timeout(config));
+            } finally {
+                sem.release();
+            }
+            if (result.output() != null) {
+                remember(key, result);
+            }
+            mine.complete(result);
+            return result;
+        } catch (Throwable t) {
+            // Errors too (e.g. OutOfMemoryError): waiters would otherwise block on mine forever
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            IN_FLIGHT.remove(key, mine);
+        }
+    }
+
+    private static Result await(CompletableFuture<Result> running) throws IOException, InterruptedException {
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException("tidy failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    public static String stats() {
+        synchronized (MEMO) {
+            return "Tidy memo: " + MEMO.size() + " document(s), " + memoHits + " hit(s)";
+        }
+    }
+
+    private static Result runTidy(String exe, String inputHtml, Duration timeout)
+            throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>(TIDY_ARGS.size() + 1);
+        cmd.add(exe);
+        cmd.addAll(TIDY_ARGS);
+        byte[] input = inputHtml.getBytes(StandardCharsets.UTF_8);
+        // A truncated result is discarded below, so the cap only has to fit a real document
+        int maxOutput = (int) Math.min(MAX_OUTPUT_BYTES, Math.max(MIN_OUTPUT_BYTES, input.length * 4L));
+        ProcessRunner.Result run = ProcessRunner.run(new ProcessBuilder(cmd), input, timeout, maxOutput,
+                StandardCharsets.UTF_8);
+        String stdout = run.stdout().replace("\r\n", "\n");
+        String stderr = run.stderr().replace("\r\n", "\n").stripTrailing();
+        int exit = run.exitCode();
+        if (run.timedOut()) {
+            stderr += (stderr.isEmpty() ? "" : "\n") + "[tidy terminated: exceeded " + timeout.toSeconds() + " s timeout]";
+        }
+
+        if ((exit == 0 || exit == 1) && !run.truncated() && !stdout.isBlank()) {
+            String cleaned = stdout.endsWith("\n") ? stdout : stdout + "\n";
+            return new Result(cleaned, stderr, exit);
+        }
+        return new Result(null, stderr, exit);
+    }
+
+    /* ---------- memo ---------- */
+
+    private static String memoKey(String exe, String html) {
+        var md = ContentHash.newDigest();
+        ContentHash.update(md, exe);
+        ContentHash.update(md, String.join(" ", TIDY_ARGS));
+        md.update(html.getBytes(StandardCharsets.UTF_8));
+        return ContentHash.hex(md.digest());
+    }
+
+    private static void remember(String key, Result result) {
+        long size = result.output().length() + (result.stderr() == null ? 0 : result.stderr().length());
+        if (size > MEMO_MAX_CHARS / 4) return; // one huge document should not flush everything else
+        synchronized (MEMO) {
+            Result previous = MEMO.put(key, result);
+            if (previous != null) memoChars -= charsOf(previous);
+            memoChars += size;
+            Iterator<Result> it = MEMO.values().iterator();
+            while (memoChars > MEMO_MAX_CHARS && it.hasNext()) {
+                memoChars -= charsOf(it.next());
+                it.remove();
+            }
+        }
+    }
+
+    private static long charsOf(Result r) {
+        return r.output().length() + (r.stderr() == null ? 0 : r.stderr().length());
+    }
+
+    /* ---------- limits ---------- */
+
+    private static synchronized Semaphore permits(int limit) {
+        if (permits == null) {
+            permits = new Semaphore(limit, true);
+        }
+        return permits;
+    }
+
+    private static int maxConcurrency(Config config) {
+        return Utils.positiveInt(config.get("tidy_max_concurrency"), Runtime.getRuntime().availableProcessors());
+    }
+
+    private static Duration timeout(Config config) {
+        int seconds = Utils.positiveInt(config.get("tidy_timeout_seconds"), (int) DEFAULT_TIMEOUT.toSeconds());
+        return Duration.ofSeconds(seconds);
+    }
+
+    /* ---------- PATH lookup ---------- */
+
+    private static String findTidyExecutable() {
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        String[] candidates = os.contains("win")
+                ? new String[]{"tidy.exe", "tidy"}
+                : new String[]{"tidy"};
+        for (String c : candidates) {
+            String found = executableOnPath(c);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private static String executableOnPath(String exe) {
+        String path = System.getenv("PATH");
+        if (path == null) return null;
+        String[] parts = path.split(File.pathSeparator);
+        for (String dir : parts) {
+            if (dir.isEmpty()) continue; // an empty entry means the working directory; never trust it
+            File f = new File(dir, exe);
+            if (f.isFile() && f.canExecute()) {
+                return f.getAbsolutePath();
+            }
+        }
+        return null;
+    }
+}
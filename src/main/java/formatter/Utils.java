@@ -4,10 +4,20 @@ package formatter;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Utility methods for file I/O operations and Java program execution.
@@ -24,13 +34,195 @@ public class Utils {
         return Files.readString(Paths.get(path), StandardCharsets.UTF_8);
     }
 
-    public static void writeFile(String path, String content) throws IOException {
-        Path filePath = Paths.get(path);
-        Path parentDir = filePath.getParent();
-        if (parentDir != null && !Files.exists(parentDir)) {
-            Files.createDirectories(parentDir);
+    /**
+     * Atomic, content-aware write of a whole String (see writeFile(Path, WriterBody, boolean)).
+     * Small contents are compared byte for byte with the existing file first, so rewriting an
+     * unchanged manifest costs one read instead of a temp file, a hash pass and a rename.
+     */
+    public static boolean writeFile(String path, String content) throws IOException {
+        if (content.length() > SMALL_WRITE_CHARS) {
+            return writeFile(Paths.get(path), out -> out.write(content), false);
+        }
+        Path target = writeTarget(Paths.get(path));
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (sameBytes(target, bytes)) {
+            return false;
+        }
+        Path tmp = tempSibling(target);
+        try {
+            Files.write(tmp, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            replace(tmp, target);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Body of a streamed file write. */
+    @FunctionalInterface
+    public interface WriterBody {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    public static boolean writeFile(Path path, WriterBody body) throws IOException {
+        return writeFile(path, body, false);
+    }
+
+    /** fsync_output = true: force published outputs to disk before they replace the old file. */
+    static boolean fsyncOutput(Config config) {
+        String flag = config.get("fsync_output");
+        return flag != null && flag.trim().equalsIgnoreCase("true");
+    }
+
+    /**
+     * Streams body (UTF-8) into a hidden temp file next to path through one FileChannel and
+     * renames it into place with ATOMIC_MOVE, so readers see either the old or the new file and
+     * never a partial one; on failure the previous file is left untouched. With fsync the data
+     * (and, where supported, the directory entry) is forced to disk around the rename.
+     *
+     * When the bytes hash the same as the existing file the temp file is dropped and the
+     * original (and its mtime) kept. Returns false in that case, true when path was replaced.
+     *
+     * A symlinked path is written through: the link's target is replaced and the link kept.
+     */
+    public static boolean writeFile(Path path, WriterBody body, boolean fsync) throws IOException {
+        Path target = writeTarget(path);
+        Path tmp = tempSibling(target);
+        ByteBuffer buffer = borrowWriteBuffer();
+        try {
+            ChannelSink sink;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                sink = new ChannelSink(ch, buffer);
+                Writer w = new OutputStreamWriter(sink, StandardCharsets.UTF_8);
+                body.writeTo(w);
+                w.flush();
+                sink.drain();
+                if (fsync) ch.force(true);
+            }
+            if (sameContent(target, sink.written, sink.digest.digest())) {
+                return false;
+            }
+            replace(tmp, target);
+            if (fsync && target.getParent() != null) forceDirectory(target.getParent());
+            return true;
+        } finally {
+            WRITE_BUFFER.set(buffer);
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static final AtomicLong TEMP_SEQ = new AtomicLong();
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+    private static final int SMALL_WRITE_CHARS = 16 * 1024;
+    private static final int MAX_SYMLINK_HOPS = 40;
+
+    /**
+     * One direct write buffer per thread, reused across writes. A write takes it out while it
+     * runs, so a nested writeFile on the same thread (from inside a body) gets its own.
+     */
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = new ThreadLocal<>();
+
+    private static ByteBuffer borrowWriteBuffer() {
+        ByteBuffer buffer = WRITE_BUFFER.get();
+        if (buffer == null) return ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+        WRITE_BUFFER.set(null);
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Absolute path that is actually replaced: path itself, or the file its symlink chain ends at. */
+    private static Path writeTarget(Path path) throws IOException {
+        Path target = path.toAbsolutePath().normalize();
+        for (int hops = 0; Files.isSymbolicLink(target); hops++) {
+            if (hops == MAX_SYMLINK_HOPS) throw new IOException("Too many levels of symbolic links: " + path);
+            target = target.resolveSibling(Files.readSymbolicLink(target)).normalize();
+        }
+        Path dir = target.getParent();
+        if (dir != null && !Files.exists(dir)) {
+            Files.createDirectories(dir);
+        }
+        return target;
+    }
+
+    private static Path tempSibling(Path target) {
+        // Not Files.createTempFile: its owner-only permissions would carry over to the output
+        return target.resolveSibling("." + target.getFileName() + "."
+                + Long.toHexString(System.nanoTime()) + Long.toHexString(TEMP_SEQ.incrementAndGet()) + ".tmp");
+    }
+
+    private static void replace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Copies bytes into a direct buffer and writes it to the channel when full, hashing as it goes. */
+    private static final class ChannelSink extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final MessageDigest digest = ContentHash.newDigest();
+        private long written;
+
+        ChannelSink(FileChannel channel, ByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) b);
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) drain();
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        void drain() throws IOException {
+            buffer.flip();
+            written += buffer.remaining();
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static boolean sameContent(Path existing, long size, byte[] hash) {
+        try {
+            return Files.isRegularFile(existing)
+                    && Files.size(existing) == size
+                    && ContentHash.sha256(existing).equals(ContentHash.hex(hash));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean sameBytes(Path existing, byte[] bytes) {
+        try {
+            return Files.isRegularFile(existing)
+                    && Files.size(existing) == bytes.length
+                    && Arrays.equals(Files.readAllBytes(existing), bytes);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Makes the rename durable; not every platform can open a directory, which is fine to skip. */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // e.g. Windows: directory handles cannot be opened this way
         }
-        Files.writeString(filePath, content, StandardCharsets.UTF_8);
     }
 
     public static boolean fileExists(String path) {
@@ -59,6 +251,11 @@ public class Utils {
     }
 
     public static ExecutionResult runJavaFileDetailed(String codeFilePath) throws IOException, InterruptedException {
+        return runJavaFileDetailed(codeFilePath, ExecutionOptions.DEFAULTS);
+    }
+
+    public static ExecutionResult runJavaFileDetailed(String codeFilePath, ExecutionOptions options)
+            throws IOException, InterruptedException {
         File sourceFile = new File(codeFilePath);
         if (!sourceFile.isFile()) {
             return new ExecutionResult(false,
@@ -78,53 +275,188 @@ public class Utils {
         }
         File workDir = (packageRoot != null) ? packageRoot : sourceFile.getParentFile();
 
+        if (options.mode() == ExecutionMode.IN_PROCESS && InMemoryJavaRunner.isAvailable()) {
+            InProcessAttempt attempt = runInProcess(sourceFile, fqcn, workDir, options);
+            if (attempt.result() != null) return attempt.result();
+            return runSubprocess(sourceFile, fqcn, workDir, options).withSubprocessFallback(attempt.fallbackReason());
+        }
+        return runSubprocess(sourceFile, fqcn, workDir, options);
+    }
+
+    /**
+     * Compile with javax.tools and run main() in an isolated class loader.
+     * Returns only a fallback reason when the program must not run in-process (see
+     * InMemoryJavaRunner.inProcessBlocker) or timed out without its threads stopping; the caller
+     * then runs it in a subprocess and records the reason in RunMetadata.
+     */
+    private static InProcessAttempt runInProcess(File sourceFile, String fqcn, File workDir, ExecutionOptions options)
+            throws IOException, InterruptedException {
+        long compileStart = System.nanoTime();
+        InMemoryJavaRunner.Compilation compilation = (options.compileCache() != null)
+                ? options.compileCache().compile(sourceFile.toPath(), workDir.toPath())
+                : InMemoryJavaRunner.compile(sourceFile.toPath(), workDir.toPath());
+        long compileMillis = (System.nanoTime() - compileStart) / 1_000_000;
+        if (!compilation.success()) {
+            return new InProcessAttempt(new ExecutionResult(false, compilation.diagnostics(), "", false,
+                    new RunMetadata(compileMillis, 0, false, false)), null);
+        }
+
+        String outputKey = null;
+        if (options.outputCache() != null) {
+            outputKey = OutputCache.key(compilation.classes(), ExecutionMode.IN_PROCESS, options);
+            String cached = options.outputCache().get(outputKey);
+            if (cached != null) {
+                return new InProcessAttempt(new ExecutionResult(true, compilation.diagnostics(), cached, true,
+                        new RunMetadata(compileMillis, 0, false, false)), null);
+            }
+        }
+        String blocker = InMemoryJavaRunner.inProcessBlocker(compilation.classes());
+        if (blocker != null) {
+            return new InProcessAttempt(null, blocker);
+        }
+        ProcessRunner.Result run = InMemoryJavaRunner.run(compilation.classes(), workDir.toPath(), fqcn, options.stdin(),
+                options.timeout(), options.maxOutputBytes());
+        if (run == null) {
+            return new InProcessAttempt(null, "timed out and its threads ignored interruption");
+        }
+        return new InProcessAttempt(
+                finishRun(compilation.diagnostics(), compileMillis, run, fqcn, workDir, workDir, options, outputKey),
+                null);
+    }
+
+    private static ExecutionResult runSubprocess(File sourceFile, String fqcn, File workDir, ExecutionOptions options)
+            throws IOException, InterruptedException {
         Path workDirPath = workDir.toPath().toAbsolutePath().normalize();
         Path sourcePath = sourceFile.toPath().toAbsolutePath().normalize();
         String relativeSource = workDirPath.relativize(sourcePath).toString();
+        Path classesDir = Files.createTempDirectory("dpf-classes");
+        try {
+            return compileAndRun(relativeSource, classesDir, fqcn, workDir, options);
+        } finally {
+            deleteTree(classesDir);
+        }
+    }
 
-        // (1) Compile from package root so output directory tree matches package.
-        ProcessBuilder compilePB = new ProcessBuilder("javac", relativeSource);
+    /**
+     * javac from the package root into a fresh classesDir (-Xprefer:source recompiles sibling
+     * sources instead of trusting stale .class files beside them), so classesDir holds exactly
+     * this compilation's classes: they key the output cache and come first on the run classpath.
+     */
+    private static ExecutionResult compileAndRun(String relativeSource, Path classesDir, String fqcn, File workDir,
+                                                 ExecutionOptions options) throws IOException, InterruptedException {
+        // (1) Compile from package root so sibling sources resolve through the default sourcepath
+        ProcessBuilder compilePB = new ProcessBuilder("javac", "-d", classesDir.toString(),
+                "-sourcepath", ".", "-Xprefer:source", relativeSource);
         compilePB.directory(workDir);
-        Process compileProc = compilePB.start();
+        ProcessRunner.Result compile = ProcessRunner.run(compilePB, null, options.timeout(),
+                options.maxOutputBytes(), StandardCharsets.UTF_8);
 
-        String compilerMessages = readAll(compileProc.getErrorStream()) +
-                                  readAll(compileProc.getInputStream());
-        int compileExit = compileProc.waitFor();
-        boolean compiled = compileExit == 0;
+        String compilerMessages = normalizeNewlines(compile.stderr() + compile.stdout());
+        if (compile.timedOut()) {
+            compilerMessages += "[javac terminated: exceeded " + options.timeout().toSeconds() + " s timeout]\n";
+        }
+        RunMetadata compileOnly = new RunMetadata(compile.elapsedMillis(), 0, compile.timedOut(), compile.truncated());
+        if (compile.exitCode() != 0) {
+            return new ExecutionResult(false, compilerMessages, "", false, compileOnly);
+        }
 
-        if (!compiled) {
-            return new ExecutionResult(false, compilerMessages, "");
+        String outputKey = null;
+        if (options.outputCache() != null) {
+            outputKey = OutputCache.key(compiledClasses(classesDir), ExecutionMode.SUBPROCESS, options);
+            String cached = options.outputCache().get(outputKey);
+            if (cached != null) {
+                return new ExecutionResult(true, compilerMessages, cached, true, compileOnly);
+            }
         }
 
-        // (2) Run with classpath = package root
-        ProcessBuilder runPB = new ProcessBuilder("java", "-cp", ".", fqcn);
+        // (2) Run in the package root (relative file paths keep working); fresh classes first,
+        //     then the root itself for any prebuilt classes without sources
+        ProcessBuilder runPB = new ProcessBuilder("java", "-cp", classesDir + File.pathSeparator + ".", fqcn);
         runPB.directory(workDir);
-        Process runProc = runPB.start();
+        ProcessRunner.Result run = ProcessRunner.run(runPB, options.stdin(), options.timeout(),
+                options.maxOutputBytes(), StandardCharsets.UTF_8);
+        return finishRun(compilerMessages, compile.elapsedMillis(), run, fqcn, workDir, classesDir.toFile(),
+                options, outputKey);
+    }
+
+    private static ExecutionResult finishRun(String compilerMessages, long compileMillis, ProcessRunner.Result run,
+                                             String fqcn, File workDir, File classRoot, ExecutionOptions options,
+                                             String outputKey) {
+        String programOutput = formatProgramOutput(run, fqcn, workDir, classRoot, options);
+        // Only complete runs are worth remembering: a cut-off tail depends on max_output_kb.
+        if (outputKey != null && !run.timedOut() && !run.truncated()) {
+            options.outputCache().put(outputKey, programOutput);
+        }
+        return new ExecutionResult(true, compilerMessages, programOutput, false,
+                new RunMetadata(compileMillis, run.elapsedMillis(), run.timedOut(), run.truncated()));
+    }
+
+    /** Every class file javac wrote under classesDir, keyed by binary name. */
+    private static Map<String,byte[]> compiledClasses(Path classesDir) throws IOException {
+        Map<String,byte[]> classes = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(classesDir)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String rel = classesDir.relativize(p).toString();
+                if (!rel.endsWith(".class")) continue;
+                String binaryName = rel.substring(0, rel.length() - ".class".length()).replace(File.separatorChar, '.');
+                classes.put(binaryName, Files.readAllBytes(p));
+            }
+        }
+        return classes;
+    }
+
+    /** Best-effort recursive delete of a scratch directory. */
+    private static void deleteTree(Path root) {
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // a leftover temp directory is harmless
+        }
+    }
 
-        String stdout = readAll(runProc.getInputStream());
-        String stderr = readAll(runProc.getErrorStream());
-        int runExit = runProc.waitFor();
+    private static String formatProgramOutput(ProcessRunner.Result run, String fqcn, File workDir, File classRoot,
+                                              ExecutionOptions options) {
+        String stdout = normalizeNewlines(run.stdout());
+        String stderr = normalizeNewlines(run.stderr());
+        int runExit = run.exitCode();
 
         StringBuilder programOut = new StringBuilder();
+        if (run.stdoutTruncated()) {
+            programOut.append("[stdout truncated: showing last ").append(options.maxOutputBytes())
+                      .append(" of ").append(run.stdoutBytes()).append(" bytes]\n");
+        }
         if (!stdout.isBlank()) {
             programOut.append(stdout);
             if (!stdout.endsWith("\n")) programOut.append('\n');
         }
         if (!stderr.isBlank()) {
-            programOut.append("[stderr]\n").append(stderr.trim()).append('\n');
+            programOut.append("[stderr]\n");
+            if (run.stderrTruncated()) {
+                programOut.append("[stderr truncated: showing last ").append(options.maxOutputBytes())
+                          .append(" of ").append(run.stderrBytes()).append(" bytes]\n");
+            }
+            programOut.append(stderr.trim()).append('\n');
         }
-        if (runExit != 0) {
+        if (run.timedOut()) {
+            programOut.append("[Program terminated: exceeded ").append(options.timeout().toSeconds())
+                      .append(" s timeout]\n");
+        } else if (runExit != 0) {
             programOut.append("[Program exited with code ").append(runExit).append("]\n");
             if (stderr.contains("Could not find or load main class")) {
                 programOut.append("[Hint] FQCN: ").append(fqcn).append('\n')
                           .append("[Hint] Working dir: ").append(workDir.getAbsolutePath()).append('\n')
                           .append("[Hint] Expected: ")
-                          .append(new File(workDir, fqcn.replace('.', File.separatorChar) + ".class").getAbsolutePath())
+                          .append(new File(classRoot, fqcn.replace('.', File.separatorChar) + ".class").getAbsolutePath())
                           .append('\n');
             }
         }
+        return programOut.toString();
+    }
 
-        return new ExecutionResult(true, compilerMessages, programOut.toString());
+    private static String normalizeNewlines(String s) {
+        return s.indexOf('\r') < 0 ? s : s.replace("\r\n", "\n").replace('\r', '\n');
     }
 
     /* ---------- Package / root detection ---------- */
@@ -173,22 +505,98 @@ public class Utils {
         return true;
     }
 
-    /* ---------- Stream util ---------- */
+    /* ---------- Execution options ---------- */
 
-    private static String readAll(InputStream in) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line).append('\n');
-            }
-            return sb.toString();
+    /**
+     * IN_PROCESS compiles through javax.tools and runs main() inside this JVM;
+     * SUBPROCESS forks javac + java (also the fallback when no system compiler exists).
+     */
+    public enum ExecutionMode {
+        IN_PROCESS, SUBPROCESS;
+
+        public static ExecutionMode parse(String value) {
+            if (value != null && value.trim().equalsIgnoreCase("subprocess")) return SUBPROCESS;
+            return IN_PROCESS;
+        }
+    }
+
+    /**
+     * compileCache / outputCache may be null (no caching). compileCache is only consulted on the
+     * in-process path, since that is where class bytes are held in memory. stdin is fed to the
+     * program (null = empty input). timeout and maxOutputBytes bound compile and run steps.
+     */
+    public record ExecutionOptions(ExecutionMode mode,
+                                   CompilationCache compileCache,
+                                   OutputCache outputCache,
+                                   byte[] stdin,
+                                   Duration timeout,
+                                   int maxOutputBytes) {
+        public static final ExecutionOptions DEFAULTS = new ExecutionOptions(ExecutionMode.IN_PROCESS,
+                null, null, null, Duration.ofSeconds(10), 1024 * 1024);
+
+        /**
+         * Reads execution_mode = in_process | subprocess (default in_process), the cache keys,
+         * program_input_file_address (its loaded contents become stdin),
+         * execution_timeout_seconds (default 10) and max_output_kb (default 1024).
+         */
+        public static ExecutionOptions fromConfig(Config config) {
+            String input = config.get("programInputFileContents", true);
+            byte[] stdin = (input == null || Config.isMissingMarker(input) || Config.isUnreadableMarker(input))
+                    ? null
+                    : input.getBytes(StandardCharsets.UTF_8);
+            return new ExecutionOptions(ExecutionMode.parse(config.get("execution_mode")),
+                    CompilationCache.forConfig(config),
+                    OutputCache.forConfig(config),
+                    stdin,
+                    Duration.ofSeconds(positiveInt(config.get("execution_timeout_seconds"), 10)),
+                    (int) Math.min(positiveInt(config.get("max_output_kb"), 1024) * 1024L, Integer.MAX_VALUE));
         }
     }
 
+    /** A positive int config value; fallback when absent, not digits, zero or beyond int range. */
+    static int positiveInt(String raw, int fallback) {
+        if (raw == null || !raw.trim().matches("\\d+")) return fallback;
+        int v;
+        try {
+            v = Integer.parseInt(raw.trim());
+        } catch (NumberFormatException e) {
+            return fallback; // too many digits for an int
+        }
+        return v > 0 ? v : fallback;
+    }
+
     /* ---------- Result record ---------- */
 
+    /**
+     * Timing (wall clock, ms) and limit flags for one compile + run. subprocessFallback says why
+     * an in_process run was handed to a subprocess (null when it was not).
+     */
+    public record RunMetadata(long compileMillis, long runMillis, boolean timedOut, boolean outputTruncated,
+                              String subprocessFallback) {
+        public static final RunMetadata NONE = new RunMetadata(0, 0, false, false);
+
+        public RunMetadata(long compileMillis, long runMillis, boolean timedOut, boolean outputTruncated) {
+            this(compileMillis, runMillis, timedOut, outputTruncated, null);
+        }
+    }
+
+    /** outputFromCache = programOutput was served by OutputCache and the program did not run. */
     public record ExecutionResult(boolean compiled,
                                   String compilerMessages,
-                                  String programOutput) { }
+                                  String programOutput,
+                                  boolean outputFromCache,
+                                  RunMetadata metadata) {
+        public ExecutionResult(boolean compiled, String compilerMessages, String programOutput) {
+            this(compiled, compilerMessages, programOutput, false, RunMetadata.NONE);
+        }
+
+        ExecutionResult withSubprocessFallback(String reason) {
+            RunMetadata m = metadata;
+            return new ExecutionResult(compiled, compilerMessages, programOutput, outputFromCache,
+                    new RunMetadata(m.compileMillis(), m.runMillis(), m.timedOut(), m.outputTruncated(), reason));
+        }
+    }
+
+    /** Either the in-process result, or why the program has to run in a subprocess instead. */
+    private record InProcessAttempt(ExecutionResult result, String fallbackReason) {}
 }
\ No newline at end of file
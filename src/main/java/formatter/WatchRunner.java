@@ -0,0 +1,185 @@
+// Current filename: WatchRunner.java
+
+package formatter;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch mode: keep one warm JVM and regenerate the current unit whenever an input changes.
+ *
+ * Usage:
+ *   java formatter.DiscussionPostFormatter --watch [--config path] [--debounce-ms N]
+ *
+ * Watched: config.txt, every resolved *_file_address input of an enabled section, the code file
+ * and the other .java files next to it, and the theme JSON files under themes/. Events are
+ * debounced (default 150 ms of quiet) so an editor's save burst triggers one rebuild. When an
+ * input's directory does not exist yet, its nearest existing ancestor is watched instead, so
+ * creating the directory triggers a rebuild. What to watch is re-derived on every rebuild (the
+ * code file may have been found, or input paths may have moved).
+ *
+ * A rebuild reloads the config (inputs are re-read lazily) and goes through the same path as
+ * batch mode, so the build manifest skips saves that changed nothing and the section cache
+ * re-renders only the sections whose input changed; themes, the compilation cache and the
+ * in-memory section fragments stay warm between rebuilds. Stop with Ctrl+C.
+ */
+public final class WatchRunner {
+
+    private WatchRunner() {}
+
+    private static final long DEFAULT_DEBOUNCE_MS = 150;
+
+    /** What the registered directories are watched for; missingDirs are watched through an ancestor. */
+    private record Targets(Map<WatchKey,Path> dirs, Set<Path> files, Set<Path> sourceDirs, Set<Path> themeDirs,
+                           Set<Path> missingDirs) {
+
+        boolean relevant(Path changed) {
+            if (files.contains(changed)) return true;
+            for (Path missing : missingDirs) {
+                if (missing.startsWith(changed)) return true; // the directory or one of its ancestors appeared
+            }
+            Path parent = changed.getParent();
+            String name = changed.getFileName().toString();
+            return (name.endsWith(".java") && sourceDirs.contains(parent))
+                    || (name.endsWith(".json") && themeDirs.contains(parent));
+        }
+    }
+
+    public static int run(String[] args) throws Exception {
+        String configPath = "config.txt";
+        long debounceMs = DEFAULT_DEBOUNCE_MS;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--watch" -> { }
+                case "--config" -> configPath = (i + 1 < args.length) ? args[++i] : configPath;
+                case "--debounce-ms" -> debounceMs = (i + 1 < args.length && args[i + 1].matches("\\d+")) ? Long.parseLong(args[++i]) : debounceMs;
+                default -> {
+                    System.out.println("Unknown watch argument: " + args[i]);
+                    return 2;
+                }
+            }
+        }
+
+        Path configFile = Paths.get(configPath).toAbsolutePath().normalize();
+        Config config = Config.load(configFile.toString());
+
+        try (WatchService ws = configFile.getFileSystem().newWatchService()) {
+            Targets targets = register(ws, config, configFile, null);
+            System.out.println("Watch: unit " + config.get("unit") + ", " + targets.files().size() + " file(s) in "
+                    + targets.dirs().size() + " dir(s); Ctrl+C to stop");
+            rebuild(config, "initial build");
+
+            while (true) {
+                WatchKey first = ws.take();
+                Set<Path> changed = new TreeSet<>();
+                collect(first, targets, changed);
+                // Debounce: keep draining until the directories have been quiet for debounceMs
+                WatchKey next;
+                while ((next = ws.poll(debounceMs, TimeUnit.MILLISECONDS)) != null) {
+                    collect(next, targets, changed);
+                }
+                if (changed.isEmpty()) continue;
+
+                try {
+                    config = config.reload();
+                } catch (IOException e) {
+                    System.out.println("[watch] config reload failed: " + e.getMessage());
+                    continue;
+                }
+                // Unit, theme, input paths or the located code file may have moved, and missing
+                // directories may exist now: re-derive what to watch before reading the inputs
+                targets = register(ws, config, configFile, targets);
+                rebuild(config, describe(changed, config.getConfigDir()));
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            return 0;
+        }
+    }
+
+    private static void rebuild(Config config, String reason) {
+        BatchRunner.UnitOutcome o = BatchRunner.renderUnit(new BatchRunner.Job("watch", config, null), false);
+        System.out.println("[watch] " + reason + " -> " + (o.ok() ? "" : "FAILED: ") + o.detail()
+                + " (" + o.millis() + " ms)");
+    }
+
+    private static void collect(WatchKey key, Targets targets, Set<Path> changed) {
+        Path dir = targets.dirs().get(key);
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Lost events: assume everything in this directory changed
+                if (dir != null) changed.add(dir);
+                continue;
+            }
+            if (dir == null) continue; // key of a directory no longer watched
+            Path p = dir.resolve((Path) ev.context()).normalize();
+            if (targets.relevant(p)) changed.add(p);
+        }
+        key.reset();
+    }
+
+    /** Registers every directory that holds a watched file; keys no longer needed are cancelled. */
+    private static Targets register(WatchService ws, Config config, Path configFile, Targets previous) {
+        Set<Path> files = new LinkedHashSet<>();
+        Set<Path> sourceDirs = new LinkedHashSet<>();
+        Set<Path> themeDirs = new LinkedHashSet<>();
+
+        files.add(configFile);
+        for (String key : config.rawValues().keySet()) {
+            if (!key.endsWith("_file_address") || !config.isInputNeeded(key)) continue;
+            Path p = config.getResolvedPath(key);
+            if (p != null) files.add(p.toAbsolutePath().normalize());
+        }
+        Path code = CodeLocator.locate(config);
+        if (code != null) {
+            Path c = code.toAbsolutePath().normalize();
+            files.add(c);
+            if (c.getParent() != null) sourceDirs.add(c.getParent());
+        }
+        themeDirs.add(config.getConfigDir().resolve("themes").normalize());
+        themeDirs.add(Paths.get("themes").toAbsolutePath().normalize());
+
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path f : files) {
+            if (f.getParent() != null) dirs.add(f.getParent());
+        }
+        dirs.addAll(sourceDirs);
+        dirs.addAll(themeDirs);
+
+        Set<Path> missingDirs = new LinkedHashSet<>();
+        Set<Path> watched = new LinkedHashSet<>();
+        for (Path d : dirs) {
+            Path existing = d;
+            while (existing != null && !Files.isDirectory(existing)) existing = existing.getParent();
+            if (existing == null) continue;
+            if (!existing.equals(d)) missingDirs.add(d);
+            watched.add(existing);
+        }
+
+        Map<WatchKey,Path> keys = new HashMap<>();
+        for (Path d : watched) {
+            try {
+                keys.put(d.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), d);
+            } catch (IOException e) {
+                System.out.println("[watch] cannot watch " + d + ": " + e.getMessage());
+            }
+        }
+        if (previous != null) {
+            for (WatchKey k : previous.dirs().keySet()) {
+                if (!keys.containsKey(k)) k.cancel();
+            }
+        }
+        return new Targets(keys, files, sourceDirs, themeDirs, missingDirs);
+    }
+
+    private static String describe(Set<Path> changed, Path base) {
+        StringJoiner sj = new StringJoiner(", ");
+        for (Path p : changed) {
+            sj.add(p.startsWith(base) ? base.relativize(p).toString() : p.toString());
+        }
+        return sj + " changed";
+    }
+}
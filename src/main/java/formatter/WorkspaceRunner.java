@@ -0,0 +1,165 @@
+// Current filename: WorkspaceRunner.java
+
+package formatter;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Multi-course workspace mode: one JVM renders the posts for every config.txt under a root.
+ *
+ * Usage:
+ *   java formatter.DiscussionPostFormatter --workspace <root> [--units spec] [--jobs N] [--max-depth N] [--force]
+ *
+ *  - Discovers config.txt files below root (skipping .git, build, out, node_modules and hidden dirs).
+ *  - Loads the configs concurrently, then renders each course's current unit (or every unit
+ *    in --units) on one worker pool.
+ *  - Everything resolves relative to each config's own directory (themes/, inputs, output),
+ *    so no per-course working directory is needed. Parsed themes (ThemeLoader) and the
+ *    compilation cache are process-wide and therefore shared across courses.
+ */
+public final class WorkspaceRunner {
+
+    private WorkspaceRunner() {}
+
+    private static final String USAGE =
+            "Usage: --workspace <root dir> [--units spec] [--jobs N] [--max-depth N] [--force]";
+
+    public static int run(String[] args) throws Exception {
+        Path root = null;
+        String unitSpec = null;
+        int jobs = 0;
+        int maxDepth = 6;
+        boolean force = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--workspace" -> root = (i + 1 < args.length) ? Paths.get(args[++i]) : null;
+                case "--units" -> unitSpec = (i + 1 < args.length) ? args[++i] : null;
+                case "--jobs" -> jobs = (i + 1 < args.length && args[i + 1].matches("\\d+")) ? Utils.positiveInt(args[++i], 0) : 0;
+                case "--max-depth" -> maxDepth = (i + 1 < args.length && args[i + 1].matches("\\d+")) ? Utils.positiveInt(args[++i], maxDepth) : maxDepth;
+                case "--force" -> force = true;
+                default -> {
+                    System.out.println("Unknown workspace argument: " + args[i]);
+                    return 2;
+                }
+            }
+        }
+        if (root == null || !Files.isDirectory(root)) {
+            System.out.println(USAGE);
+            return 2;
+        }
+        List<String> units = null;
+        if (unitSpec != null) {
+            try {
+                units = BatchRunner.parseUnits(unitSpec);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return 2;
+            }
+        }
+        if (jobs <= 0) {
+            jobs = Runtime.getRuntime().availableProcessors();
+        }
+
+        long start = System.nanoTime();
+        List<Path> configFiles = discover(root.toAbsolutePath().normalize(), maxDepth);
+        if (configFiles.isEmpty()) {
+            System.out.println("No config.txt found under " + root.toAbsolutePath());
+            return 1;
+        }
+        System.out.println("Workspace: " + configFiles.size() + " config(s) under " + root.toAbsolutePath()
+                + ", " + jobs + " worker(s)");
+
+        List<BatchRunner.UnitOutcome> failures = new ArrayList<>();
+        List<Config> configs = loadAll(configFiles, jobs, failures);
+
+        List<BatchRunner.Job> work = new ArrayList<>();
+        Path absRoot = root.toAbsolutePath().normalize();
+        for (Config cfg : configs) {
+            String course = absRoot.relativize(cfg.getConfigDir()).toString();
+            if (course.isEmpty()) course = ".";
+            if (units == null) {
+                work.add(new BatchRunner.Job(course + " #" + cfg.get("unit"), cfg, null));
+            } else {
+                for (String u : units) {
+                    work.add(new BatchRunner.Job(course + " #" + u, cfg, u));
+                }
+            }
+        }
+
+        List<BatchRunner.UnitOutcome> outcomes = new ArrayList<>(failures);
+        outcomes.addAll(BatchRunner.runAll(work, jobs, force));
+        long totalMs = (System.nanoTime() - start) / 1_000_000;
+
+        BatchRunner.printSummary(outcomes, totalMs, jobs);
+        Set<CompilationCache> caches = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Config cfg : configs) {
+            CompilationCache cc = CompilationCache.forConfig(cfg);
+            if (cc != null && caches.add(cc)) System.out.println(cc.stats());
+        }
+        Set<SectionCache> sectionCaches = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Config cfg : configs) {
+            SectionCache sc = SectionCache.forConfig(cfg);
+            if (sc != null && sectionCaches.add(sc)) System.out.println(sc.stats());
+        }
+        return outcomes.stream().allMatch(BatchRunner.UnitOutcome::ok) ? 0 : 1;
+    }
+
+    /** config.txt files under root, in path order, pruning build/VCS directories. */
+    static List<Path> discover(Path root, int maxDepth) throws IOException {
+        List<Path> found = new ArrayList<>();
+        Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                if (!dir.equals(root) && CodeLocator.isPruned(name)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && file.getFileName().toString().equals("config.txt")) {
+                    found.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(found);
+        return found;
+    }
+
+    private static List<Config> loadAll(List<Path> files, int jobs, List<BatchRunner.UnitOutcome> failures)
+            throws InterruptedException {
+        ExecutorService pool = BatchRunner.newPool(Math.min(jobs, files.size()), "config-loader");
+        try {
+            List<Future<Config>> futures = new ArrayList<>();
+            for (Path f : files) {
+                futures.add(pool.submit(() -> Config.load(f.toString())));
+            }
+            List<Config> configs = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    configs.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    failures.add(new BatchRunner.UnitOutcome(files.get(i).toString(), false, 0,
+                            "Config load failed: " + e.getCause().getMessage()));
+                }
+            }
+            return configs;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
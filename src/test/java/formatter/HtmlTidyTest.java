@@ -0,0 +1,148 @@
+// Current filename: HtmlTidyTest.java
+
+package formatter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Golden output of the built-in tidy for the repairs and layout rules it promises. */
+class HtmlTidyTest {
+
+    private static String tidy(String html) throws IOException {
+        StringWriter out = new StringWriter();
+        HtmlTidy.parse(html).writeTo(out);
+        return out.toString();
+    }
+
+    @Test
+    void closesUnclosedSpanAtParagraphEnd() throws IOException {
+        String html = "<!DOCTYPE html><html><body><p>one <span>two <b>three</b> four</p><p>next</p></body></html>";
+        assertEquals("""
+                <!DOCTYPE html>
+                <html>
+                  <body>
+                    <p>
+                      one <span>two <b>three</b> four</span>
+                    </p>
+
+                    <p>
+                      next
+                    </p>
+                  </body>
+                </html>
+                """, tidy(html));
+        assertEquals(List.of("line 1 column 62 - Warning: missing </span> before </p>"),
+                HtmlTidy.parse(html).diagnostics());
+    }
+
+    @Test
+    void closesUnclosedParagraphsImplicitly() throws IOException {
+        String html = "<!DOCTYPE html><html><body><div><p>first<p>second<div>after</div></div></body></html>";
+        assertEquals("""
+                <!DOCTYPE html>
+                <html>
+                  <body>
+                    <div>
+                      <p>
+                        first
+                      </p>
+                      <p>
+                        second
+                      </p>
+                      <div>
+                        after
+                      </div>
+                    </div>
+                  </body>
+                </html>
+                """, tidy(html));
+        assertEquals(List.of(), HtmlTidy.parse(html).diagnostics());
+    }
+
+    @Test
+    void discardsStrayClosers() throws IOException {
+        String html = "<!DOCTYPE html><html><body><div>text</span> more</em></div></p></body></html>";
+        assertEquals("""
+                <!DOCTYPE html>
+                <html>
+                  <body>
+                    <div>
+                      text more
+                    </div>
+                  </body>
+                </html>
+                """, tidy(html));
+        assertEquals(List.of(
+                "line 1 column 37 - Warning: discarding unexpected </span>",
+                "line 1 column 49 - Warning: discarding unexpected </em>",
+                "line 1 column 60 - Warning: discarding unexpected </p>"),
+                HtmlTidy.parse(html).diagnostics());
+    }
+
+    @Test
+    void preservesPreContentVerbatim() throws IOException {
+        String html = "<!DOCTYPE html><html><body><div><pre>  keep\n    <b>this</b>   &amp; that\n</pre></div></body></html>";
+        assertEquals("""
+                <!DOCTYPE html>
+                <html>
+                  <body>
+                    <div>
+                      <pre>  keep
+                    <b>this</b>   &amp; that
+                </pre>
+                    </div>
+                  </body>
+                </html>
+                """, tidy(html));
+    }
+
+    @Test
+    void wrapsInlineContentAt120Columns() throws IOException {
+        String html = "<!DOCTYPE html><html><body><p>" + "word ".repeat(40) + "</p></body></html>";
+        String tidied = tidy(html);
+        assertEquals("""
+                <!DOCTYPE html>
+                <html>
+                  <body>
+                    <p>
+                      word word word word word word word word word word word word word word word word word word word word word word word
+                      word word word word word word word word word word word word word word word word word
+                    </p>
+                  </body>
+                </html>
+                """, tidied);
+        for (String line : tidied.split("\n")) {
+            assertTrue(line.length() <= HtmlTidy.WRAP, line);
+        }
+    }
+
+    @Test
+    void serializesDeeplyNestedElementsWithoutRecursion() throws IOException {
+        int depth = 10_000;
+        String html = "<!DOCTYPE html><html><body>"
+                + "<div>".repeat(depth) + "deep" + "</div>".repeat(depth)
+                + "<p>" + "<span>".repeat(depth) + "inline" + "</span>".repeat(depth) + "</p>"
+                + "<pre>" + "<b>".repeat(depth) + "raw" + "</b>".repeat(depth) + "</pre>"
+                + "</body></html>";
+        String tidied = tidy(html);
+        String[] lines = tidied.split("\n");
+        int deepIndent = HtmlTidy.MAX_INDENT_DEPTH * HtmlTidy.INDENT;
+        assertTrue(tidied.contains("\n" + " ".repeat(deepIndent) + "deep\n"));
+        assertTrue(tidied.contains("<span>".repeat(depth) + "inline" + "</span>".repeat(depth)));
+        assertTrue(tidied.contains("<pre>" + "<b>".repeat(depth) + "raw" + "</b>".repeat(depth) + "</pre>"));
+        assertEquals("</html>", lines[lines.length - 1]);
+        assertEquals(List.of(), HtmlTidy.parse(html).diagnostics());
+    }
+
+    @Test
+    void reportsMissingDoctype() {
+        assertEquals(List.of("line 1 column 1 - Warning: missing <!DOCTYPE> declaration"),
+                HtmlTidy.parse("<html><body></body></html>").diagnostics());
+    }
+}
@@ -0,0 +1,150 @@
+// Current filename: InlineCodeProcessorTest.java
+
+package formatter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Differential test of the single-pass scanner against the regex chain it replaced
+ * ({@link Legacy}, kept verbatim below as the reference), plus golden cases for the two
+ * documented differences.
+ */
+class InlineCodeProcessorTest {
+
+    private static final String CODE =
+            "<code style=\"background:#f1f1f1;padding:2px 4px;border-radius:3px; font-family:'Courier New',monospace;\">";
+    private static final String PRE =
+            "<pre style=\"background:#f5f5f5;padding:1em;border:1px solid #ccc;overflow:auto; font-family:'Courier New',monospace;\">";
+
+    /** Fragments that exercise every construct and their edge cases when glued at random. */
+    private static final String[] PIECES = {
+            "`", "``", "```", "````", "<code>", "</code>", "<code> ", " </code>", "<", ">", "&",
+            "\"", "'", "a", "b c", " ", "\n", "\t", "x < y", "<div>", "<p>", "<b>", "i++",
+    };
+
+    @Test
+    void matchesLegacyOnRandomProse() {
+        Random rnd = new Random(7);
+        int compared = 0;
+        for (int round = 0; round < 200_000; round++) {
+            StringBuilder sb = new StringBuilder();
+            int pieces = 1 + rnd.nextInt(12);
+            for (int p = 0; p < pieces; p++) sb.append(PIECES[rnd.nextInt(PIECES.length)]);
+            String prose = sb.toString();
+            if (Legacy.differsByDesign(prose)) continue;
+            assertEquals(Legacy.process(prose), InlineCodeProcessor.process(prose), () -> "prose: " + prose);
+            compared++;
+        }
+        assertTrue(compared > 100_000, "too few comparable inputs: " + compared);
+    }
+
+    @Test
+    void matchesLegacyOnBenchmarkStyleProse() {
+        String prose = "Use `List<String>` and `a && b`, or <code>x < y</code> and <code>i++</code>.\n\n"
+                + "```\nint x = 1;\nif (x < 2) return;\n```\nthen `null` <div>block</div>";
+        assertEquals(Legacy.process(prose), InlineCodeProcessor.process(prose));
+    }
+
+    @Test
+    void plainProseIsReturnedUnchanged() {
+        String prose = "nothing to do here <b>at all</b>";
+        assertSame(prose, InlineCodeProcessor.process(prose));
+        assertEquals("", InlineCodeProcessor.process(null));
+    }
+
+    @Test
+    void fenceContentsAreNotRescannedForBackticks() {
+        // Legacy: the escaped fence body went through the backtick pass again
+        String prose = "```say `hi` twice```";
+        assertEquals(PRE + "say `hi` twice</pre>", InlineCodeProcessor.process(prose));
+        assertEquals(PRE + "say " + CODE + "hi</code> twice</pre>", Legacy.process(prose));
+    }
+
+    @Test
+    void backtickSpansDoNotCrossFences() {
+        // Legacy: the span ran from the stray backtick into the generated <pre> markup
+        String prose = "a ` b ```x``` c ` d";
+        assertEquals("a ` b " + PRE + "x</pre> c ` d", InlineCodeProcessor.process(prose));
+        assertTrue(Legacy.process(prose).contains(CODE + "b &lt;pre"));
+    }
+
+    @Test
+    void reportsBlockHtml() {
+        assertTrue(InlineCodeProcessor.processDetailed("```x```").containsBlockHtml());
+        assertTrue(InlineCodeProcessor.processDetailed("see < DIV class=x>").containsBlockHtml());
+        assertFalse(InlineCodeProcessor.processDetailed("`<div>` and <b>").containsBlockHtml());
+        assertFalse(InlineCodeProcessor.processDetailed("<divx>").containsBlockHtml());
+    }
+
+    @Test
+    void manyUnmatchedCodeTagsStayLinear() {
+        // Every tag used to search for the next backtick up to the end of the prose
+        String prose = "<code>x</code> ".repeat(200_000) + "`";
+        long start = System.nanoTime();
+        String html = InlineCodeProcessor.process(prose);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(Legacy.process(prose), html);
+        assertTrue(millis < 2_000, "took " + millis + " ms");
+    }
+
+    /** The former regex chain: fences, then single backticks, then literal code tags. */
+    static final class Legacy {
+
+        private static final Pattern FENCE = Pattern.compile("```([\\s\\S]*?)```");
+        private static final Pattern BACKTICKS = Pattern.compile("`([^`]+)`");
+        private static final Pattern CODE_TAGS = Pattern.compile("<code>([^<]+)</code>");
+
+        static String process(String prose) {
+            if (prose == null) return "";
+            return codeTags(backticks(fences(prose)));
+        }
+
+        /**
+         * True when the inputs fall under a documented difference: the fence pass produced a
+         * block and a backtick survives it (inside the block, or unpaired around it).
+         */
+        static boolean differsByDesign(String prose) {
+            String fenced = fences(prose);
+            return !fenced.equals(prose) && fenced.indexOf('`') >= 0;
+        }
+
+        private static String fences(String text) {
+            Matcher m = FENCE.matcher(text);
+            StringBuffer sb = new StringBuffer();
+            while (m.find()) {
+                String code = m.group(1);
+                if (code.endsWith("\n")) code = code.substring(0, code.length() - 1);
+                m.appendReplacement(sb, Matcher.quoteReplacement(PRE + HtmlEscaper.escape(code) + "</pre>"));
+            }
+            m.appendTail(sb);
+            return sb.toString();
+        }
+
+        private static String backticks(String text) {
+            return inline(BACKTICKS.matcher(text));
+        }
+
+        private static String codeTags(String text) {
+            return inline(CODE_TAGS.matcher(text));
+        }
+
+        private static String inline(Matcher m) {
+            StringBuffer sb = new StringBuffer();
+            while (m.find()) {
+                String code = HtmlEscaper.escape(m.group(1).trim());
+                m.appendReplacement(sb, Matcher.quoteReplacement(CODE + code + "</code>"));
+            }
+            m.appendTail(sb);
+            return sb.toString();
+        }
+    }
+}